@@ -0,0 +1,329 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.content.Context;
+import android.support.v4.media.MediaBrowserCompat;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.apple.android.sdk.authentication.TokenProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Runs CatalogApiClient against a MockWebServer standing in for the Apple Music API.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class CatalogApiClientTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private MockWebServer server;
+    private CatalogApiClient client;
+    private ExecutorService executor;
+
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final TokenProvider tokenProvider = new TokenProvider() {
+            @Override
+            public String getDeveloperToken() {
+                return "developer-token";
+            }
+
+            @Override
+            public String getUserToken() {
+                return null;
+            }
+        };
+        // Every test gets its own port, so responses cached by an earlier test never match
+        client = new CatalogApiClient(context, tokenProvider, new CatalogStringPool(), server.url("/v1/catalog/").toString(), "us");
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.shutdown();
+    }
+
+
+    @Test
+    public void lookupIsBatchedAt300Ids() throws Exception {
+        server.setDispatcher(new CatalogDispatcher());
+        final List<String> ids = createIds(0, 650);
+
+        final Map<String, MediaBrowserCompat.MediaItem> items = client.lookup(CatalogJsonParser.TYPE_SONG, ids);
+
+        assertEquals(650, items.size());
+        assertEquals("Song 42", items.get("42").getDescription().getTitle().toString());
+        assertEquals(3, server.getRequestCount());
+        final Set<String> requestedIds = new HashSet<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final RecordedRequest request = server.takeRequest();
+            assertEquals("/v1/catalog/us/songs", request.getRequestUrl().encodedPath());
+            assertEquals("Bearer developer-token", request.getHeader("Authorization"));
+            final List<String> batch = getIds(request);
+            batchSizes.add(batch.size());
+            requestedIds.addAll(batch);
+        }
+        assertEquals(Arrays.asList(300, 300, 50), batchSizes);
+        assertEquals(new HashSet<>(ids), requestedIds);
+    }
+
+
+    @Test
+    public void overlappingLookupWaitsForInFlightIds() throws Exception {
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        server.setDispatcher(new CatalogDispatcher() {
+            private final AtomicBoolean first = new AtomicBoolean(true);
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (first.getAndSet(false)) {
+                    releaseFirst.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+                return super.dispatch(request);
+            }
+        });
+
+        final Future<Map<String, MediaBrowserCompat.MediaItem>> firstLookup = lookupAsync(createIds(0, 10));
+        // Held by the dispatcher until the second lookup has sent its own request
+        assertEquals(createIds(0, 10), getIds(server.takeRequest(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        final Future<Map<String, MediaBrowserCompat.MediaItem>> secondLookup = lookupAsync(createIds(5, 15));
+        assertEquals(createIds(10, 15), getIds(server.takeRequest(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        releaseFirst.countDown();
+
+        assertEquals(10, firstLookup.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).size());
+        assertEquals(new HashSet<>(createIds(5, 15)), secondLookup.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).keySet());
+        assertEquals(2, server.getRequestCount());
+    }
+
+
+    @Test
+    public void lookupsWaitingOnEachOtherComplete() throws Exception {
+        server.setDispatcher(new CatalogDispatcher());
+        final List<String> ids = createIds(0, 400);
+        // Both lookups claim ids at the same time, so each usually ends up waiting on part of the other
+        for (int round = 0; round < 50; round++) {
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            final Future<Map<String, MediaBrowserCompat.MediaItem>> first = lookupAsync(ids, barrier);
+            final Future<Map<String, MediaBrowserCompat.MediaItem>> second = lookupAsync(ids, barrier);
+            assertEquals(400, first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).size());
+            assertEquals(400, second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).size());
+        }
+    }
+
+
+    @Test
+    public void unchangedResponseIsRevalidatedWithETag() throws Exception {
+        server.setDispatcher(new CatalogDispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if ("\"v1\"".equals(request.getHeader("If-None-Match"))) {
+                    return new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\"");
+                }
+                return super.dispatch(request)
+                        .setHeader("ETag", "\"v1\"")
+                        .setHeader("Cache-Control", "public, max-age=0");
+            }
+        });
+        final List<String> ids = createIds(0, 3);
+
+        final Map<String, MediaBrowserCompat.MediaItem> fetched = client.lookup(CatalogJsonParser.TYPE_ALBUM, ids);
+        final Map<String, MediaBrowserCompat.MediaItem> revalidated = client.lookup(CatalogJsonParser.TYPE_ALBUM, ids);
+
+        assertEquals(2, server.getRequestCount());
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+        assertEquals(fetched.keySet(), revalidated.keySet());
+        assertEquals("Album 2", revalidated.get("2").getDescription().getTitle().toString());
+    }
+
+
+    @Test
+    public void notFoundReturnsNoItems() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        assertTrue(client.lookup(CatalogJsonParser.TYPE_SONG, createIds(0, 3)).isEmpty());
+    }
+
+
+    @Test
+    public void serverErrorFailsLookupAndIsRetried() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody(createResponse(createIds(0, 3), "songs", "Song")));
+
+        try {
+            client.lookup(CatalogJsonParser.TYPE_SONG, createIds(0, 3));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        // A failed batch releases its ids, so the next lookup asks again
+        assertEquals(3, client.lookup(CatalogJsonParser.TYPE_SONG, createIds(0, 3)).size());
+        assertEquals(2, server.getRequestCount());
+    }
+
+
+    @Test
+    public void failedBatchStillRunsAndReleasesTheOthers() throws Exception {
+        server.setDispatcher(new CatalogDispatcher() {
+            private final AtomicBoolean first = new AtomicBoolean(true);
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (first.getAndSet(false)) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                return super.dispatch(request);
+            }
+        });
+
+        try {
+            client.lookup(CatalogJsonParser.TYPE_SONG, createIds(0, 650));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        assertEquals(3, server.getRequestCount());
+        // Would wait forever on a batch left in flight
+        assertEquals(650, lookupAsync(createIds(0, 650)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).size());
+    }
+
+
+    @Test
+    public void malformedJsonFailsLookup() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"data\": [{\"id\": \"1\", \"attributes\": {\"name\": "));
+        server.enqueue(new MockResponse().setBody("{\"data\": {\"id\": \"1\"}}"));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.lookup(CatalogJsonParser.TYPE_PLAYLIST, createIds(0, 1));
+                fail("Expected IOException");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+
+    @Test
+    public void idsMissingFromResponseAreLeftOut() throws Exception {
+        server.enqueue(new MockResponse().setBody(createResponse(createIds(0, 2), "songs", "Song")));
+
+        final Map<String, MediaBrowserCompat.MediaItem> items = client.lookup(CatalogJsonParser.TYPE_SONG, createIds(0, 3));
+
+        assertEquals(2, items.size());
+        assertNotNull(items.get("1"));
+        assertNull(items.get("2"));
+    }
+
+
+    private Future<Map<String, MediaBrowserCompat.MediaItem>> lookupAsync(final List<String> ids) {
+        return lookupAsync(ids, null);
+    }
+
+
+    private Future<Map<String, MediaBrowserCompat.MediaItem>> lookupAsync(final List<String> ids, final CyclicBarrier barrier) {
+        return executor.submit(new Callable<Map<String, MediaBrowserCompat.MediaItem>>() {
+            @Override
+            public Map<String, MediaBrowserCompat.MediaItem> call() throws Exception {
+                if (barrier != null) {
+                    barrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+                return client.lookup(CatalogJsonParser.TYPE_SONG, ids);
+            }
+        });
+    }
+
+
+    private static List<String> createIds(int start, int end) {
+        final List<String> ids = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            ids.add(Integer.toString(i));
+        }
+        return ids;
+    }
+
+
+    private static List<String> getIds(RecordedRequest request) {
+        final List<String> ids = new ArrayList<>(Arrays.asList(request.getRequestUrl().queryParameter("ids").split(",")));
+        // Requests list ids in string order, the tests compare them in numeric order
+        Collections.sort(ids, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Integer.compare(Integer.parseInt(a), Integer.parseInt(b));
+            }
+        });
+        return ids;
+    }
+
+
+    private static String createResponse(List<String> ids, String resourceType, String titlePrefix) {
+        final StringBuilder body = new StringBuilder("{\"data\":[");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append("{\"id\":\"").append(ids.get(i)).append("\",\"type\":\"").append(resourceType)
+                    .append("\",\"attributes\":{\"name\":\"").append(titlePrefix).append(' ').append(ids.get(i))
+                    .append("\",\"artistName\":\"Artist\",\"artwork\":{\"url\":\"https://example.com/{w}x{h}bb.jpg\"}}}");
+        }
+        return body.append("]}").toString();
+    }
+
+
+    /**
+     * Answers every lookup with one resource per requested id.
+     */
+    private static class CatalogDispatcher extends Dispatcher {
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            final String path = request.getRequestUrl().encodedPath();
+            final String resourceType = path.substring(path.lastIndexOf('/') + 1);
+            final String titlePrefix = "albums".equals(resourceType) ? "Album" : "playlists".equals(resourceType) ? "Playlist" : "Song";
+            return new MockResponse()
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(createResponse(getIds(request), resourceType, titlePrefix));
+        }
+
+    }
+
+}
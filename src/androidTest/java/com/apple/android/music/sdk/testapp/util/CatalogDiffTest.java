@@ -0,0 +1,65 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class CatalogDiffTest {
+
+    @Test
+    public void identicalListsReturnPrevious() {
+        final List<MediaBrowserCompat.MediaItem> previous = Arrays.asList(item("a", "A"), item("b", "B"));
+        final List<MediaBrowserCompat.MediaItem> next = Arrays.asList(item("a", "A"), item("b", "B"));
+        assertSame(previous, CatalogDiff.merge(previous, next));
+    }
+
+
+    @Test
+    public void insertAtFrontReusesShiftedItems() {
+        final MediaBrowserCompat.MediaItem a = item("a", "A");
+        final MediaBrowserCompat.MediaItem b = item("b", "B");
+        final List<MediaBrowserCompat.MediaItem> previous = Arrays.asList(a, b);
+        final List<MediaBrowserCompat.MediaItem> next = Arrays.asList(item("new", "New"), item("a", "A"), item("b", "B"));
+        final List<MediaBrowserCompat.MediaItem> merged = CatalogDiff.merge(previous, next);
+        assertNotSame(previous, merged);
+        assertEquals(3, merged.size());
+        assertSame(next.get(0), merged.get(0));
+        assertSame(a, merged.get(1));
+        assertSame(b, merged.get(2));
+    }
+
+
+    @Test
+    public void changedItemIsReplaced() {
+        final MediaBrowserCompat.MediaItem a = item("a", "A");
+        final List<MediaBrowserCompat.MediaItem> previous = Arrays.asList(a, item("b", "B"));
+        final List<MediaBrowserCompat.MediaItem> next = Arrays.asList(item("a", "A"), item("b", "B2"));
+        final List<MediaBrowserCompat.MediaItem> merged = CatalogDiff.merge(previous, next);
+        assertSame(a, merged.get(0));
+        assertSame(next.get(1), merged.get(1));
+    }
+
+
+    private static MediaBrowserCompat.MediaItem item(String mediaId, String title) {
+        final MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .build();
+        return new MediaBrowserCompat.MediaItem(description, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
+    }
+
+}
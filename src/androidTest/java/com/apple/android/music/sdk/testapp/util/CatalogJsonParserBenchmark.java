@@ -0,0 +1,214 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.JsonReader;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import com.apple.android.music.playback.model.MediaContainerType;
+import com.apple.android.music.playback.model.MediaItemType;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Compares CatalogJsonParser with the JsonReader path it replaced on synthetic catalogs of 1k,
+ * 10k and 100k items, after checking both read the same items. Items per second and bytes
+ * allocated per item are logged under TAG.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public final class CatalogJsonParserBenchmark {
+
+    private static final String TAG = "CatalogJsonParserBenchmark";
+    private static final int[] ITEM_COUNTS = {1000, 10000, 100000};
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    private interface Parser {
+        List<MediaBrowserCompat.MediaItem> parse(InputStream inputStream) throws IOException;
+    }
+
+
+    @Test
+    public void parseCatalog() throws IOException {
+        final Parser streamingParser = new Parser() {
+            @Override
+            public List<MediaBrowserCompat.MediaItem> parse(InputStream inputStream) throws IOException {
+                final CatalogJsonParser parser = new CatalogJsonParser(inputStream, new CatalogStringPool());
+                try {
+                    return parser.readItems(0, Integer.MAX_VALUE);
+                } finally {
+                    parser.close();
+                }
+            }
+        };
+        final Parser jsonReaderParser = new Parser() {
+            @Override
+            public List<MediaBrowserCompat.MediaItem> parse(InputStream inputStream) throws IOException {
+                return JsonReaderBaseline.readItems(inputStream);
+            }
+        };
+        for (int itemCount : ITEM_COUNTS) {
+            final byte[] catalog = createCatalog(itemCount);
+            assertSameItems(jsonReaderParser.parse(new ByteArrayInputStream(catalog)), streamingParser.parse(new ByteArrayInputStream(catalog)));
+            measure("JsonReader", jsonReaderParser, catalog, itemCount);
+            measure("CatalogJsonParser", streamingParser, catalog, itemCount);
+        }
+    }
+
+
+    @SuppressWarnings("deprecation")
+    private static void measure(String name, Parser parser, byte[] catalog, int itemCount) throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            parser.parse(new ByteArrayInputStream(catalog));
+        }
+        long elapsedNanos = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            Runtime.getRuntime().gc();
+            final ByteArrayInputStream inputStream = new ByteArrayInputStream(catalog);
+            // Thread allocation counting is the only per byte figure the platform offers without a profiler
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final List<MediaBrowserCompat.MediaItem> items = parser.parse(inputStream);
+            elapsedNanos += SystemClock.elapsedRealtimeNanos() - start;
+            Debug.stopAllocCounting();
+            allocatedBytes += Debug.getThreadAllocSize();
+            assertEquals(itemCount, items.size());
+        }
+        final double itemsPerSecond = (double) itemCount * MEASURED_RUNS * 1e9 / elapsedNanos;
+        final long bytesPerItem = allocatedBytes / ((long) itemCount * MEASURED_RUNS);
+        Log.i(TAG, String.format("%s items=%d itemsPerSecond=%.0f allocatedBytesPerItem=%d", name, itemCount, itemsPerSecond, bytesPerItem));
+    }
+
+
+    private static void assertSameItems(List<MediaBrowserCompat.MediaItem> expected, List<MediaBrowserCompat.MediaItem> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final MediaDescriptionCompat expectedDescription = expected.get(i).getDescription();
+            final MediaDescriptionCompat actualDescription = actual.get(i).getDescription();
+            assertEquals(expected.get(i).getFlags(), actual.get(i).getFlags());
+            assertEquals(expectedDescription.getMediaId(), actualDescription.getMediaId());
+            assertEquals(String.valueOf(expectedDescription.getTitle()), String.valueOf(actualDescription.getTitle()));
+            assertEquals(String.valueOf(expectedDescription.getSubtitle()), String.valueOf(actualDescription.getSubtitle()));
+            assertEquals(String.valueOf(expectedDescription.getDescription()), String.valueOf(actualDescription.getDescription()));
+            assertEquals(expectedDescription.getMediaUri(), actualDescription.getMediaUri());
+            assertEquals(expectedDescription.getIconUri(), actualDescription.getIconUri());
+            assertEquals(CatalogJsonParser.getType(actualDescription.getExtras()) != CatalogJsonParser.TYPE_NONE,
+                    expectedDescription.getExtras() != null && !expectedDescription.getExtras().isEmpty());
+        }
+    }
+
+
+    /**
+     * A catalog shaped like media_data, with repeated artists and albums as real catalogs have.
+     */
+    private static byte[] createCatalog(int itemCount) {
+        final String[] types = {"song", "song", "song", "album", "playlist"};
+        final StringBuilder json = new StringBuilder(itemCount * 300).append('[');
+        for (int i = 0; i < itemCount; i++) {
+            if (i > 0) {
+                json.append(",\n");
+            }
+            final String type = types[i % types.length];
+            json.append("{\"id\": \"").append(1000000000L + i)
+                    .append("\", \"title\": \"Title ").append(i).append(i % 7 == 0 ? " \\u00e9t\u00e9 \\\"live\\\"" : "")
+                    .append("\", \"subtitle\": \"Artist ").append(i % 997)
+                    .append("\", \"description\": \"Album ").append(i % 4999)
+                    .append("\", \"mediaUri\": \"https://example.com/media/").append(i)
+                    .append("\", \"iconUri\": \"https://example.com/artwork/").append(i % 4999).append("/512x512bb.jpg")
+                    .append("\", \"browseable\": ").append(!"song".equals(type))
+                    .append(", \"playable\": true, \"type\": \"").append(type).append("\"}");
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * The JsonReader path LocalMediaProvider used before CatalogJsonParser, kept as the baseline.
+     */
+    private static final class JsonReaderBaseline {
+
+        static List<MediaBrowserCompat.MediaItem> readItems(InputStream inputStream) throws IOException {
+            final JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+            try {
+                final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(64);
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    result.add(readItem(reader));
+                }
+                reader.endArray();
+                return result;
+            } finally {
+                reader.close();
+            }
+        }
+
+        private static MediaBrowserCompat.MediaItem readItem(JsonReader reader) throws IOException {
+            int flags = 0;
+            MediaDescriptionCompat.Builder mediaDescriptionBuilder = new MediaDescriptionCompat.Builder();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String fieldName = reader.nextName();
+                if ("id".equals(fieldName)) {
+                    mediaDescriptionBuilder.setMediaId(reader.nextString());
+                } else if ("title".equals(fieldName)) {
+                    mediaDescriptionBuilder.setTitle(reader.nextString());
+                } else if ("subtitle".equals(fieldName)) {
+                    mediaDescriptionBuilder.setSubtitle(reader.nextString());
+                } else if ("description".equals(fieldName)) {
+                    mediaDescriptionBuilder.setDescription(reader.nextString());
+                } else if ("browseable".equals(fieldName)) {
+                    if (reader.nextBoolean()) {
+                        flags |= MediaBrowserCompat.MediaItem.FLAG_BROWSABLE;
+                    }
+                } else if ("playable".equals(fieldName)) {
+                    if (reader.nextBoolean()) {
+                        flags |= MediaBrowserCompat.MediaItem.FLAG_PLAYABLE;
+                    }
+                } else if ("mediaUri".equals(fieldName)) {
+                    mediaDescriptionBuilder.setMediaUri(Uri.parse(reader.nextString()));
+                } else if ("iconUri".equals(fieldName)) {
+                    mediaDescriptionBuilder.setIconUri(Uri.parse(reader.nextString()));
+                } else if ("type".equals(fieldName)) {
+                    String type = reader.nextString();
+                    Bundle extras = new Bundle(1);
+                    if ("song".equals(type)) {
+                        extras.putInt("itemType", MediaItemType.SONG);
+                    } else if ("album".equals(type)) {
+                        extras.putInt("containerType", MediaContainerType.ALBUM);
+                    } else if ("playlist".equals(type)) {
+                        extras.putInt("containerType", MediaContainerType.PLAYLIST);
+                    }
+                    mediaDescriptionBuilder.setExtras(extras);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return new MediaBrowserCompat.MediaItem(mediaDescriptionBuilder.build(), flags);
+        }
+
+    }
+
+}
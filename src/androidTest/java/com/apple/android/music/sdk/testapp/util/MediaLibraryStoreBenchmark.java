@@ -0,0 +1,136 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Imports synthetic catalog files of 1k, 10k and 100k items into a scratch MediaLibraryStore the
+ * way LocalMediaProvider does, streaming them through DataLoader.readItemsFromStream, then reads
+ * pages from the middle of each. Import items per second and bytes allocated per page read are
+ * logged under TAG, the latter should not grow with the size of the parent.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public final class MediaLibraryStoreBenchmark {
+
+    private static final String TAG = "MediaLibraryStoreBenchmark";
+    private static final String DATABASE_NAME = "media_library_benchmark.db";
+    private static final int[] ITEM_COUNTS = {1000, 10000, 100000};
+    private static final int PAGE_SIZE = 100;
+    private static final int MEASURED_READS = 20;
+    private static final String[] TYPES = {"song", "song", "song", "album", "playlist"};
+    private static final int[] TYPE_CODES = {CatalogJsonParser.TYPE_SONG, CatalogJsonParser.TYPE_SONG, CatalogJsonParser.TYPE_SONG,
+            CatalogJsonParser.TYPE_ALBUM, CatalogJsonParser.TYPE_PLAYLIST};
+
+    private Context context;
+    private CatalogStringPool stringPool;
+    private MediaLibraryStore store;
+
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        stringPool = new CatalogStringPool();
+        store = new MediaLibraryStore(context, stringPool, DATABASE_NAME);
+        store.load();
+    }
+
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+
+    @Test
+    public void importAndReadPages() throws IOException {
+        for (int itemCount : ITEM_COUNTS) {
+            final String catalogKey = "benchmark_" + itemCount;
+            measureImport(catalogKey, itemCount);
+            measurePageReads(catalogKey, itemCount);
+        }
+    }
+
+
+    private void measureImport(String catalogKey, int itemCount) throws IOException {
+        final byte[] catalog = createCatalog(itemCount);
+        Runtime.getRuntime().gc();
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final MediaLibraryStore.Importer importer = store.beginImport(catalogKey);
+        LocalMediaProvider.DataLoader.readItemsFromStream(new ByteArrayInputStream(catalog), stringPool, importer);
+        importer.commit("benchmark");
+        final long elapsedNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Log.i(TAG, String.format("import items=%d itemsPerSecond=%.0f", itemCount, itemCount * 1e9 / elapsedNanos));
+    }
+
+
+    @SuppressWarnings("deprecation")
+    private void measurePageReads(String catalogKey, int itemCount) {
+        final int offset = itemCount / 2;
+        // The first read warms up the statement cache and the pages of the index
+        assertEquals(PAGE_SIZE, store.readItems(catalogKey, offset, PAGE_SIZE).size());
+        long elapsedNanos = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < MEASURED_READS; i++) {
+            Runtime.getRuntime().gc();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final List<MediaBrowserCompat.MediaItem> items = store.readItems(catalogKey, offset, PAGE_SIZE);
+            elapsedNanos += SystemClock.elapsedRealtimeNanos() - start;
+            Debug.stopAllocCounting();
+            allocatedBytes += Debug.getThreadAllocSize();
+            assertEquals(String.valueOf(1000000000L + offset), items.get(0).getMediaId());
+            // Types survive the round trip as the shared extras the parser hands out
+            assertSame(CatalogJsonParser.getTypeExtras(TYPE_CODES[offset % TYPE_CODES.length]), items.get(0).getDescription().getExtras());
+        }
+        Log.i(TAG, String.format("read items=%d pageSize=%d microsPerPage=%d allocatedBytesPerPage=%d", itemCount, PAGE_SIZE,
+                elapsedNanos / MEASURED_READS / 1000, allocatedBytes / MEASURED_READS));
+    }
+
+
+    /**
+     * A catalog file shaped like media_data, like the one CatalogJsonParserBenchmark parses.
+     */
+    private static byte[] createCatalog(int itemCount) {
+        final StringBuilder json = new StringBuilder(itemCount * 300).append('[');
+        for (int i = 0; i < itemCount; i++) {
+            if (i > 0) {
+                json.append(",\n");
+            }
+            final String type = TYPES[i % TYPES.length];
+            json.append("{\"id\": \"").append(1000000000L + i)
+                    .append("\", \"title\": \"Title ").append(i)
+                    .append("\", \"subtitle\": \"Artist ").append(i % 997)
+                    .append("\", \"description\": \"Album ").append(i % 4999)
+                    .append("\", \"mediaUri\": \"https://example.com/media/").append(i)
+                    .append("\", \"iconUri\": \"https://example.com/artwork/").append(i % 4999).append("/512x512bb.jpg")
+                    .append("\", \"browseable\": ").append(!"song".equals(type))
+                    .append(", \"playable\": true, \"type\": \"").append(type).append("\"}");
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
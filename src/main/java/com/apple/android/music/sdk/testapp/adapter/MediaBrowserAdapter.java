@@ -1,23 +1,31 @@
 package com.apple.android.music.sdk.testapp.adapter;
 
 import android.content.Context;
+import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.util.SparseArray;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.apple.android.music.sdk.testapp.R;
+import com.apple.android.music.sdk.testapp.util.BrowseSnapshot;
 import com.squareup.picasso.Picasso;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -31,24 +39,39 @@ public final class MediaBrowserAdapter extends RecyclerView.Adapter<MediaBrowser
 
         void onMediaItemMoreClicked(@NonNull MediaBrowserCompat.MediaItem mediaItem, View v);
 
+        void onSelectionChanged(int selectedCount);
+
     }
 
+    private static final int PAGE_SIZE = 50;
+    private static final int PAGE_PREFETCH_DISTANCE = 10;
+
+    private final Context context;
     private final LayoutInflater layoutInflater;
-    private final MediaBrowserCompat mediaBrowser;
+    private MediaBrowserCompat mediaBrowser;
     private final Listener listener;
     List<MediaBrowserCompat.MediaItem> mediaItems;
     private SubscriptionCallback subscriptionCallback;
     private String parentId;
+    private String snapshotParentId;
+    private boolean showingSnapshot;
     private final Picasso picasso;
+    private final SparseArray<List<MediaBrowserCompat.MediaItem>> pages;
+    private int requestedPageCount;
+    private boolean lastPageLoaded;
+    // A long press starts selecting playable items, while any are selected taps toggle instead of opening
+    private final Set<String> selectedMediaIds;
 
 
-    public MediaBrowserAdapter(@NonNull Context context, MediaBrowserCompat mediaBrowser, Listener listener) {
+    public MediaBrowserAdapter(@NonNull Context context, Listener listener) {
+        this.context = context.getApplicationContext();
         layoutInflater = LayoutInflater.from(context);
-        this.mediaBrowser = mediaBrowser;
         this.listener = listener;
         mediaItems = Collections.emptyList();
         subscriptionCallback = new SubscriptionCallback();
         picasso = Picasso.get();
+        pages = new SparseArray<>();
+        selectedMediaIds = new HashSet<>();
     }
 
 
@@ -64,6 +87,9 @@ public final class MediaBrowserAdapter extends RecyclerView.Adapter<MediaBrowser
         if (mediaItem != null) {
             holder.bind(mediaItem);
         }
+        if (position >= mediaItems.size() - PAGE_PREFETCH_DISTANCE) {
+            requestNextPage();
+        }
     }
 
 
@@ -73,15 +99,106 @@ public final class MediaBrowserAdapter extends RecyclerView.Adapter<MediaBrowser
     }
 
 
-    public void loadItems(@Nullable String parentId) {
+    /**
+     * Shows the snapshot of the previous session until the first live page arrives.
+     */
+    public void showSnapshot(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+        if (pages.size() > 0 || items.isEmpty()) {
+            return;
+        }
+        mediaItems = items;
+        showingSnapshot = true;
+        notifyDataSetChanged();
+    }
+
+
+    /**
+     * Returns the selected items in list order.
+     */
+    @NonNull
+    public List<MediaBrowserCompat.MediaItem> getSelectedItems() {
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(selectedMediaIds.size());
+        for (MediaBrowserCompat.MediaItem mediaItem : mediaItems) {
+            if (mediaItem != null && selectedMediaIds.contains(mediaItem.getMediaId())) {
+                result.add(mediaItem);
+            }
+        }
+        return result;
+    }
+
+
+    public void clearSelection() {
+        if (!selectedMediaIds.isEmpty()) {
+            selectedMediaIds.clear();
+            notifyDataSetChanged();
+            listener.onSelectionChanged(0);
+        }
+    }
+
+
+    private void toggleSelection(MediaBrowserCompat.MediaItem mediaItem, int position) {
+        if (!mediaItem.isPlayable() || mediaItem.getMediaId() == null) {
+            return;
+        }
+        if (!selectedMediaIds.remove(mediaItem.getMediaId())) {
+            selectedMediaIds.add(mediaItem.getMediaId());
+        }
+        notifyItemChanged(position);
+        listener.onSelectionChanged(selectedMediaIds.size());
+    }
+
+
+    public void loadItems(@NonNull MediaBrowserCompat mediaBrowser, @Nullable String parentId) {
+        this.mediaBrowser = mediaBrowser;
+        snapshotParentId = parentId;
         if (parentId == null) {
             parentId = mediaBrowser.getRoot();
         }
         this.parentId = parentId;
-        mediaBrowser.subscribe(parentId, subscriptionCallback);
+        pages.clear();
+        requestedPageCount = 0;
+        lastPageLoaded = false;
+        requestNextPage();
     }
 
-    final class MediaItemViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+    private void requestNextPage() {
+        if (parentId == null || lastPageLoaded || requestedPageCount > pages.size()) {
+            return;
+        }
+        final Bundle options = new Bundle(2);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, requestedPageCount);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, PAGE_SIZE);
+        requestedPageCount++;
+        mediaBrowser.subscribe(parentId, options, subscriptionCallback);
+    }
+
+
+    private void onPageLoaded(int page, @NonNull List<MediaBrowserCompat.MediaItem> children) {
+        pages.put(page, children);
+        if (page == requestedPageCount - 1) {
+            lastPageLoaded = children.size() < PAGE_SIZE;
+        }
+        final List<MediaBrowserCompat.MediaItem> items = new ArrayList<>(pages.size() * PAGE_SIZE);
+        for (int i = 0; i < pages.size() && pages.keyAt(i) == i; i++) {
+            items.addAll(pages.valueAt(i));
+        }
+        if (showingSnapshot) {
+            // Only rows that differ from the snapshot are rebound, so the list doesn't flash
+            final DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(new SnapshotDiffCallback(mediaItems, items));
+            showingSnapshot = false;
+            mediaItems = items;
+            diffResult.dispatchUpdatesTo(this);
+        } else {
+            mediaItems = items;
+            notifyDataSetChanged();
+        }
+        if (page == 0) {
+            BrowseSnapshot.write(context, snapshotParentId, children);
+        }
+    }
+
+    final class MediaItemViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener, View.OnLongClickListener {
 
         final ImageView iconImageView;
         final TextView titleTextView;
@@ -93,6 +210,7 @@ public final class MediaBrowserAdapter extends RecyclerView.Adapter<MediaBrowser
         MediaItemViewHolder(View itemView) {
             super(itemView);
             itemView.setOnClickListener(this);
+            itemView.setOnLongClickListener(this);
             iconImageView = (ImageView) itemView.findViewById(R.id.list_item_media_icon);
             titleTextView = (TextView) itemView.findViewById(R.id.list_item_media_title);
             subtitleTextView = (TextView) itemView.findViewById(R.id.list_item_media_subtitle);
@@ -106,12 +224,24 @@ public final class MediaBrowserAdapter extends RecyclerView.Adapter<MediaBrowser
         public void onClick(View v) {
             if (v.getId() == R.id.list_item_media_more) {
                 listener.onMediaItemMoreClicked(mediaItem, v);
+            } else if (!selectedMediaIds.isEmpty()) {
+                toggleSelection(mediaItem, getAdapterPosition());
             } else {
                 listener.onMediaItemClicked(mediaItem);
             }
         }
 
 
+        @Override
+        public boolean onLongClick(View v) {
+            if (mediaItem == null || !mediaItem.isPlayable()) {
+                return false;
+            }
+            toggleSelection(mediaItem, getAdapterPosition());
+            return true;
+        }
+
+
         void bind(MediaBrowserCompat.MediaItem mediaItem) {
             this.mediaItem = mediaItem;
             final MediaDescriptionCompat mediaDescription = mediaItem.getDescription();
@@ -122,6 +252,48 @@ public final class MediaBrowserAdapter extends RecyclerView.Adapter<MediaBrowser
                 picasso.load(mediaDescription.getIconUri()).into(iconImageView);
             }
             moreImageView.setVisibility(mediaItem.isPlayable() ? View.VISIBLE : View.GONE);
+            itemView.setActivated(selectedMediaIds.contains(mediaItem.getMediaId()));
+        }
+
+    }
+
+    private static final class SnapshotDiffCallback extends DiffUtil.Callback {
+
+        private final List<MediaBrowserCompat.MediaItem> oldItems;
+        private final List<MediaBrowserCompat.MediaItem> newItems;
+
+        SnapshotDiffCallback(List<MediaBrowserCompat.MediaItem> oldItems, List<MediaBrowserCompat.MediaItem> newItems) {
+            this.oldItems = oldItems;
+            this.newItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            final String oldMediaId = oldItems.get(oldItemPosition).getMediaId();
+            return oldMediaId != null && oldMediaId.equals(newItems.get(newItemPosition).getMediaId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            final MediaBrowserCompat.MediaItem oldItem = oldItems.get(oldItemPosition);
+            final MediaBrowserCompat.MediaItem newItem = newItems.get(newItemPosition);
+            final MediaDescriptionCompat oldDescription = oldItem.getDescription();
+            final MediaDescriptionCompat newDescription = newItem.getDescription();
+            return oldItem.getFlags() == newItem.getFlags()
+                    && TextUtils.equals(oldDescription.getTitle(), newDescription.getTitle())
+                    && TextUtils.equals(oldDescription.getSubtitle(), newDescription.getSubtitle())
+                    && TextUtils.equals(oldDescription.getDescription(), newDescription.getDescription())
+                    && (oldDescription.getIconUri() == null ? newDescription.getIconUri() == null : oldDescription.getIconUri().equals(newDescription.getIconUri()));
         }
 
     }
@@ -129,9 +301,10 @@ public final class MediaBrowserAdapter extends RecyclerView.Adapter<MediaBrowser
     private final class SubscriptionCallback extends MediaBrowserCompat.SubscriptionCallback {
 
         @Override
-        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
-            mediaItems = children;
-            notifyDataSetChanged();
+        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children, @NonNull Bundle options) {
+            if (parentId.equals(MediaBrowserAdapter.this.parentId)) {
+                onPageLoaded(options.getInt(MediaBrowserCompat.EXTRA_PAGE), children);
+            }
         }
 
     }
@@ -2,6 +2,7 @@ package com.apple.android.music.sdk.testapp.adapter;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.RecyclerView;
 
 import android.support.v4.media.session.MediaSessionCompat;
@@ -15,11 +16,15 @@ import com.apple.android.music.sdk.testapp.R;
 import com.apple.android.music.sdk.testapp.util.UpNextTouchHelperCallback;
 import com.squareup.picasso.Picasso;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 /**
  * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Holds one row per item of the whole queue. Only some of them are known at a time, rows that
+ * are not are bound empty and reported through Listener.onQueueItemsNeeded.
  */
 public final class QueueItemAdapter extends RecyclerView.Adapter<QueueItemAdapter.QueueItemViewHolder> implements UpNextTouchHelperCallback.Listener {
 
@@ -30,6 +35,8 @@ public final class QueueItemAdapter extends RecyclerView.Adapter<QueueItemAdapte
         void onQueueItemRemoved(@NonNull MediaSessionCompat.QueueItem queueItem);
 
         void onQueueItemMoved(int from, int to);
+
+        void onQueueItemsNeeded(int position);
     }
 
     private final Context context;
@@ -55,8 +62,16 @@ public final class QueueItemAdapter extends RecyclerView.Adapter<QueueItemAdapte
     @Override
     public void onBindViewHolder(QueueItemViewHolder holder, int position) {
         MediaSessionCompat.QueueItem queueItem = items.get(position);
-        Picasso.get().load(queueItem.getDescription().getIconUri()).into(holder.iconImageView);
         holder.queueItem = queueItem;
+        if (queueItem == null) {
+            Picasso.get().cancelRequest(holder.iconImageView);
+            holder.iconImageView.setImageDrawable(null);
+            holder.titleTextView.setText(null);
+            holder.subtitleTextView.setText(null);
+            listener.onQueueItemsNeeded(position);
+            return;
+        }
+        Picasso.get().load(queueItem.getDescription().getIconUri()).into(holder.iconImageView);
         holder.titleTextView.setText(queueItem.getDescription().getTitle());
         holder.subtitleTextView.setText(queueItem.getDescription().getSubtitle());
     }
@@ -68,21 +83,52 @@ public final class QueueItemAdapter extends RecyclerView.Adapter<QueueItemAdapte
 
     public long getItemId(int position) {
         MediaSessionCompat.QueueItem item = items.get(position);
-        return item.getQueueId();
+        // Queue ids are never negative, so rows still loading can not collide with loaded ones
+        return item != null ? item.getQueueId() : -1 - position;
+    }
+
+    @Nullable
+    public MediaSessionCompat.QueueItem getItem(int position) {
+        return position >= 0 && position < items.size() ? items.get(position) : null;
     }
 
-    public void setItems(List<MediaSessionCompat.QueueItem> items) {
-        if (items == null) {
-            items = Collections.emptyList();
+    /**
+     * Replaces the queue with one of queueSize items, of which only the window starting at
+     * windowOffset is known.
+     */
+    public void setQueue(int windowOffset, int queueSize, @Nullable List<MediaSessionCompat.QueueItem> window) {
+        final List<MediaSessionCompat.QueueItem> queue = new ArrayList<>(Collections.<MediaSessionCompat.QueueItem>nCopies(queueSize, null));
+        if (window != null) {
+            for (int i = 0; i < window.size() && windowOffset + i < queueSize; i++) {
+                queue.set(windowOffset + i, window.get(i));
+            }
         }
-        this.items = items;
+        items = queue;
         notifyDataSetChanged();
     }
 
+    /**
+     * Fills in the items of the queue starting at offset, once they have been paged in.
+     */
+    public void setItems(int offset, @NonNull List<MediaSessionCompat.QueueItem> page) {
+        final int count = Math.min(page.size(), items.size() - offset);
+        for (int i = 0; i < count; i++) {
+            items.set(offset + i, page.get(i));
+        }
+        if (count > 0) {
+            notifyItemRangeChanged(offset, count);
+        }
+    }
+
     @Override
     public void onItemSwiped(RecyclerView.ViewHolder viewHolder) {
         final int position = viewHolder.getAdapterPosition();
         MediaSessionCompat.QueueItem item = items.get(position);
+        if (item == null) {
+            // Not paged in yet, so there is no id to remove it by
+            notifyItemChanged(position);
+            return;
+        }
         items.remove(position);
         notifyItemRemoved(position);
         listener.onQueueItemRemoved(item);
@@ -121,7 +167,9 @@ public final class QueueItemAdapter extends RecyclerView.Adapter<QueueItemAdapte
 
         @Override
         public void onClick(View v) {
-            listener.onQueueItemClicked(queueItem);
+            if (queueItem != null) {
+                listener.onQueueItemClicked(queueItem);
+            }
         }
     }
 
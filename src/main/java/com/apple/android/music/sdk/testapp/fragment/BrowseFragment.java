@@ -3,8 +3,12 @@ package com.apple.android.music.sdk.testapp.fragment;
 
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.view.ActionMode;
 import androidx.appcompat.widget.PopupMenu;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -12,6 +16,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
@@ -25,8 +30,15 @@ import com.apple.android.music.sdk.testapp.R;
 import com.apple.android.music.sdk.testapp.activity.MainActivity;
 import com.apple.android.music.sdk.testapp.adapter.MediaBrowserAdapter;
 import com.apple.android.music.sdk.testapp.service.MediaControllerCommand;
+import com.apple.android.music.sdk.testapp.util.BrowseSnapshot;
 import com.apple.android.music.sdk.testapp.util.ListSeparatorDecoration;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 
 /**
  * Copyright (C) 2017 Apple, Inc. All rights reserved.
@@ -36,12 +48,16 @@ public final class BrowseFragment extends BaseFragment implements MediaBrowserAd
     public static final String TAG = "BrowseFragment";
     private static final String ARGUMENT_PARENT_MEDIA_ID = "parentMediaId";
     private static final String ARGUMENT_TITLE = "title";
+    // Marks container keys in createProviders, item types and container types share the low bits
+    private static final int CONTAINER_KEY_FLAG = 1 << 16;
 
     private RecyclerView listRecyclerView;
     private MediaBrowserAdapter adapter;
     private MediaBrowserCompat mediaBrowser;
     private String parentId;
     private String title;
+    private boolean itemsRequested;
+    private ActionMode selectionMode;
 
 
     public static BrowseFragment newInstance(String title, String parentMediaId) {
@@ -69,9 +85,19 @@ public final class BrowseFragment extends BaseFragment implements MediaBrowserAd
         listRecyclerView = (RecyclerView)view.findViewById(R.id.list);
         listRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
         listRecyclerView.addItemDecoration(new ListSeparatorDecoration(getActivity()));
-        if (adapter != null) {
-            listRecyclerView.setAdapter(adapter);
+        if (adapter == null) {
+            // Paint the last known list right away, the live one replaces it once the browser connects
+            adapter = new MediaBrowserAdapter(getActivity(), this);
+            final MediaBrowserAdapter snapshotAdapter = adapter;
+            BrowseSnapshot.read(getActivity(), parentId, new Handler(Looper.getMainLooper()), new BrowseSnapshot.Listener() {
+                @Override
+                public void onSnapshotRead(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+                    // Ignored by the adapter if the live list arrived first
+                    snapshotAdapter.showSnapshot(items);
+                }
+            });
         }
+        listRecyclerView.setAdapter(adapter);
         return view;
     }
 
@@ -80,21 +106,30 @@ public final class BrowseFragment extends BaseFragment implements MediaBrowserAd
     public void onStart() {
         super.onStart();
         getActivity().setTitle(title);
-        if (adapter == null && mediaBrowser != null) {
-            adapter = new MediaBrowserAdapter(getActivity(), mediaBrowser, this);
-            listRecyclerView.setAdapter(adapter);
-            adapter.loadItems(parentId);
-        }
+        loadItems();
     }
 
     @Override
     public void onMediaBrowserConnected(MediaBrowserCompat mediaBrowser) {
         super.onMediaBrowserConnected(mediaBrowser);
         this.mediaBrowser = mediaBrowser;
-        if (adapter == null && getActivity() != null) {
-            adapter = new MediaBrowserAdapter(getActivity(), mediaBrowser, this);
-            listRecyclerView.setAdapter(adapter);
-            adapter.loadItems(parentId);
+        loadItems();
+    }
+
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (selectionMode != null) {
+            selectionMode.finish();
+        }
+    }
+
+
+    private void loadItems() {
+        if (!itemsRequested && adapter != null && mediaBrowser != null) {
+            itemsRequested = true;
+            adapter.loadItems(mediaBrowser, parentId);
         }
     }
 
@@ -109,6 +144,23 @@ public final class BrowseFragment extends BaseFragment implements MediaBrowserAd
     }
 
 
+    @Override
+    public void onSelectionChanged(int selectedCount) {
+        if (selectedCount == 0) {
+            if (selectionMode != null) {
+                selectionMode.finish();
+            }
+            return;
+        }
+        if (selectionMode == null) {
+            selectionMode = ((AppCompatActivity) getActivity()).startSupportActionMode(new SelectionModeCallback());
+        }
+        if (selectionMode != null) {
+            selectionMode.setTitle(getResources().getQuantityString(R.plurals.media_selection_count, selectedCount, selectedCount));
+        }
+    }
+
+
     @Override
     public void onMediaItemMoreClicked(@NonNull final MediaBrowserCompat.MediaItem mediaItem, View v) {
         final PopupMenu popupMenu = new PopupMenu(getActivity(), v);
@@ -154,36 +206,89 @@ public final class BrowseFragment extends BaseFragment implements MediaBrowserAd
 
 
     private void playNext(MediaBrowserCompat.MediaItem mediaItem) {
-        if (!mediaItem.isPlayable() || mediaItem.getMediaId() == null) {
+        enqueue(Collections.singletonList(mediaItem), PlaybackQueueInsertionType.INSERTION_TYPE_AFTER_CURRENT_ITEM);
+    }
+
+
+    private void playLater(MediaBrowserCompat.MediaItem mediaItem) {
+        enqueue(Collections.singletonList(mediaItem), PlaybackQueueInsertionType.INSERTION_TYPE_AT_END);
+    }
+
+
+    /**
+     * Adds mediaItems to the queue in order with a single command, however many there are.
+     */
+    private void enqueue(List<MediaBrowserCompat.MediaItem> mediaItems, @PlaybackQueueInsertionType int insertionType) {
+        final MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(getActivity());
+        final List<PlaybackQueueItemProvider> providers = createProviders(mediaItems);
+        if (mediaController == null || providers.isEmpty()) {
             return;
         }
-        final MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(getActivity());
-        if (mediaController != null) {
-            PlaybackQueueItemProvider provider = createProvider(mediaItem);
+        if (providers.size() == 1) {
             Bundle params = new Bundle(2);
-            params.putParcelable(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER, provider);
-            params.putInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE, PlaybackQueueInsertionType.INSERTION_TYPE_AFTER_CURRENT_ITEM);
+            params.putParcelable(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER, providers.get(0));
+            params.putInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE, insertionType);
             mediaController.sendCommand(MediaControllerCommand.COMMAND_ADD_QUEUE_ITEMS, params, null);
+            return;
+        }
+        // Each insertion after the current item lands in front of the previous one, so those go in reverse
+        if (insertionType == PlaybackQueueInsertionType.INSERTION_TYPE_AFTER_CURRENT_ITEM) {
+            Collections.reverse(providers);
         }
+        final ArrayList<Bundle> operations = new ArrayList<>(providers.size());
+        for (PlaybackQueueItemProvider provider : providers) {
+            final Bundle operation = new Bundle(3);
+            operation.putInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OPERATION_TYPE, MediaControllerCommand.QUEUE_OPERATION_ADD);
+            operation.putParcelable(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER, provider);
+            operation.putInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE, insertionType);
+            operations.add(operation);
+        }
+        final Bundle params = new Bundle(1);
+        params.putParcelableArrayList(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OPERATIONS, operations);
+        mediaController.sendCommand(MediaControllerCommand.COMMAND_EDIT_QUEUE, params, null);
     }
 
 
-    private void playLater(MediaBrowserCompat.MediaItem mediaItem) {
-        if (!mediaItem.isPlayable() || mediaItem.getMediaId() == null) {
-            return;
+    /**
+     * Merges mediaItems into as few providers as keep them in order. Consecutive items of the same
+     * type go into a single items or containers call, and a new provider is only started when a
+     * type already used in the current one comes up again after another type.
+     */
+    private static List<PlaybackQueueItemProvider> createProviders(List<MediaBrowserCompat.MediaItem> mediaItems) {
+        final List<PlaybackQueueItemProvider> providers = new ArrayList<>();
+        final Set<Integer> usedKeys = new HashSet<>();
+        final List<String> runIds = new ArrayList<>();
+        CatalogPlaybackQueueItemProvider.Builder builder = null;
+        int runKey = 0;
+        for (MediaBrowserCompat.MediaItem mediaItem : mediaItems) {
+            if (!mediaItem.isPlayable() || mediaItem.getMediaId() == null) {
+                continue;
+            }
+            final int key = getProviderKey(mediaItem);
+            if (builder != null && key != runKey) {
+                addRun(builder, runKey, runIds);
+                if (usedKeys.contains(key)) {
+                    providers.add(builder.build());
+                    builder = null;
+                    usedKeys.clear();
+                }
+            }
+            if (builder == null) {
+                builder = new CatalogPlaybackQueueItemProvider.Builder();
+            }
+            usedKeys.add(key);
+            runKey = key;
+            runIds.add(mediaItem.getMediaId());
         }
-        final MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(getActivity());
-        if (mediaController != null) {
-            PlaybackQueueItemProvider provider = createProvider(mediaItem);
-            Bundle params = new Bundle(2);
-            params.putParcelable(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER, provider);
-            params.putInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE, PlaybackQueueInsertionType.INSERTION_TYPE_AT_END);
-            mediaController.sendCommand(MediaControllerCommand.COMMAND_ADD_QUEUE_ITEMS, params, null);
+        if (builder != null) {
+            addRun(builder, runKey, runIds);
+            providers.add(builder.build());
         }
+        return providers;
     }
 
-    private PlaybackQueueItemProvider createProvider(MediaBrowserCompat.MediaItem mediaItem) {
-        CatalogPlaybackQueueItemProvider.Builder builder = new CatalogPlaybackQueueItemProvider.Builder();
+
+    private static int getProviderKey(MediaBrowserCompat.MediaItem mediaItem) {
         int containerType = MediaContainerType.NONE;
         int itemType = MediaItemType.UNKNOWN;
         Bundle extras = mediaItem.getDescription().getExtras();
@@ -191,11 +296,54 @@ public final class BrowseFragment extends BaseFragment implements MediaBrowserAd
             containerType = extras.getInt("containerType", MediaContainerType.NONE);
             itemType = extras.getInt("itemType", MediaItemType.UNKNOWN);
         }
-        if (containerType != MediaContainerType.NONE) {
-            builder.containers(containerType, mediaItem.getMediaId());
+        return containerType != MediaContainerType.NONE ? CONTAINER_KEY_FLAG | containerType : itemType;
+    }
+
+
+    private static void addRun(CatalogPlaybackQueueItemProvider.Builder builder, int key, List<String> ids) {
+        final String[] idArray = ids.toArray(new String[ids.size()]);
+        if ((key & CONTAINER_KEY_FLAG) != 0) {
+            builder.containers(key & ~CONTAINER_KEY_FLAG, idArray);
         } else {
-            builder.items(itemType, mediaItem.getMediaId());
+            builder.items(key, idArray);
         }
-        return builder.build();
+        ids.clear();
     }
+
+
+    private final class SelectionModeCallback implements ActionMode.Callback {
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.media_selection_mode, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            final int itemId = item.getItemId();
+            if (itemId == R.id.media_selection_play_next) {
+                enqueue(adapter.getSelectedItems(), PlaybackQueueInsertionType.INSERTION_TYPE_AFTER_CURRENT_ITEM);
+            } else if (itemId == R.id.media_selection_play_later) {
+                enqueue(adapter.getSelectedItems(), PlaybackQueueInsertionType.INSERTION_TYPE_AT_END);
+            } else {
+                return false;
+            }
+            mode.finish();
+            return true;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            selectionMode = null;
+            adapter.clearSelection();
+        }
+
+    }
+
 }
@@ -11,6 +11,7 @@ import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -20,6 +21,7 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 
 import com.apple.android.music.sdk.testapp.R;
+import com.squareup.picasso.Picasso;
 
 /**
  * Copyright (C) 2017 Apple, Inc. All rights reserved.
@@ -223,7 +225,14 @@ public final class NowPlayingFragment extends BaseFragment implements View.OnCli
                 final long duration = metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
                 seekBar.setMax((int)duration);
 
-                artworkImageView.setImageBitmap(metadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART));
+                // Served by the playback service's artwork provider, the metadata carries no bitmap
+                final String artworkUri = metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+                if (!TextUtils.isEmpty(artworkUri)) {
+                    Picasso.get().load(artworkUri).into(artworkImageView);
+                } else {
+                    Picasso.get().cancelRequest(artworkImageView);
+                    artworkImageView.setImageDrawable(null);
+                }
 
                 titleTextView.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
                 subtitleTextView.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
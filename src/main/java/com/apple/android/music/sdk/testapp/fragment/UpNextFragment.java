@@ -1,6 +1,9 @@
 package com.apple.android.music.sdk.testapp.fragment;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.ItemTouchHelper;
@@ -20,6 +23,7 @@ import com.apple.android.music.sdk.testapp.service.MediaControllerCommand;
 import com.apple.android.music.sdk.testapp.util.ListSeparatorDecoration;
 import com.apple.android.music.sdk.testapp.util.UpNextTouchHelperCallback;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -28,11 +32,17 @@ import java.util.List;
 public final class UpNextFragment extends BaseFragment implements QueueItemAdapter.Listener {
 
     public static final String TAG = "UpNextFragment";
+    private static final int PAGE_SIZE = 100;
     private RecyclerView queueRecyclerView;
     private QueueItemAdapter queueItemAdapter;
     private UpNextTouchHelperCallback touchHelperCallback;
     private MediaControllerCompat mediaController;
     private MediaControllerCallback mediaControllerCallback;
+    private Handler mainHandler;
+    // Ranges of the queue requested through COMMAND_GET_QUEUE_ITEMS and not answered yet, as {start, end}
+    private final List<int[]> pendingPages = new ArrayList<>();
+    // Bumped whenever positions shift, so replies for an older queue are dropped
+    private int queueGeneration;
 
     public static UpNextFragment newInstance() {
         return new UpNextFragment();
@@ -42,6 +52,7 @@ public final class UpNextFragment extends BaseFragment implements QueueItemAdapt
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mediaControllerCallback = new MediaControllerCallback();
+        mainHandler = new Handler(Looper.getMainLooper());
     }
 
     @Override
@@ -76,6 +87,7 @@ public final class UpNextFragment extends BaseFragment implements QueueItemAdapt
         if (mediaController != null) {
             mediaController.unregisterCallback(mediaControllerCallback);
         }
+        invalidatePages();
     }
 
     @Override
@@ -87,6 +99,7 @@ public final class UpNextFragment extends BaseFragment implements QueueItemAdapt
 
     @Override
     public void onQueueItemRemoved(@NonNull MediaSessionCompat.QueueItem queueItem) {
+        invalidatePages();
         final Bundle params = new Bundle(1);
         params.putLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID, queueItem.getQueueId());
         mediaController.sendCommand(MediaControllerCommand.COMMAND_REMOVE_QUEUE_ITEM, params, null);
@@ -94,17 +107,23 @@ public final class UpNextFragment extends BaseFragment implements QueueItemAdapt
 
     @Override
     public void onQueueItemMoved(int from, int to) {
-        List<MediaSessionCompat.QueueItem> queue = mediaController.getQueue();
-        MediaSessionCompat.QueueItem sourceItem = queue.get(from);
-        MediaSessionCompat.QueueItem targetItem;
+        invalidatePages();
+        // The adapter already shows the move, so the item is placed relative to its new neighbour
+        final MediaSessionCompat.QueueItem sourceItem = queueItemAdapter.getItem(to);
+        final MediaSessionCompat.QueueItem targetItem;
         @PlaybackQueueMoveTargetType int moveTargetType;
         if (to == 0) {
-            targetItem = queue.get(0);
+            targetItem = queueItemAdapter.getItem(1);
             moveTargetType = PlaybackQueueMoveTargetType.MOVE_BEFORE_TARGET;
         } else {
-            targetItem = queue.get(to);
+            targetItem = queueItemAdapter.getItem(to - 1);
             moveTargetType = PlaybackQueueMoveTargetType.MOVE_AFTER_TARGET;
         }
+        if (sourceItem == null || targetItem == null) {
+            // Dropped next to a row that is still loading, put the queue back as the session has it
+            mediaControllerCallback.onQueueChanged(mediaController.getQueue());
+            return;
+        }
 
         final Bundle params = new Bundle(3);
         params.putLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID, sourceItem.getQueueId());
@@ -114,11 +133,59 @@ public final class UpNextFragment extends BaseFragment implements QueueItemAdapt
     }
 
 
+    @Override
+    public void onQueueItemsNeeded(int position) {
+        if (mediaController == null) {
+            return;
+        }
+        for (int[] page : pendingPages) {
+            if (position >= page[0] && position < page[1]) {
+                return;
+            }
+        }
+        // Centered on the position, so it serves scrolling in either direction
+        final int start = Math.max(0, position - PAGE_SIZE / 2);
+        final int[] page = {start, start + PAGE_SIZE};
+        pendingPages.add(page);
+        final int generation = queueGeneration;
+        final Bundle params = new Bundle(2);
+        params.putInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OFFSET, start);
+        params.putInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_COUNT, PAGE_SIZE);
+        mediaController.sendCommand(MediaControllerCommand.COMMAND_GET_QUEUE_ITEMS, params, new ResultReceiver(mainHandler) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (generation != queueGeneration) {
+                    return;
+                }
+                pendingPages.remove(page);
+                resultData.setClassLoader(MediaSessionCompat.QueueItem.class.getClassLoader());
+                final List<MediaSessionCompat.QueueItem> items = resultData.getParcelableArrayList(MediaControllerCommand.COMMAND_RESULT_QUEUE_ITEMS);
+                // A reply for a queue of another size belongs to an update that is still on its way
+                if (items != null && resultData.getInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_SIZE) == queueItemAdapter.getItemCount()) {
+                    queueItemAdapter.setItems(resultData.getInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OFFSET), items);
+                }
+            }
+        });
+    }
+
+
+    private void invalidatePages() {
+        queueGeneration++;
+        pendingPages.clear();
+    }
+
+
     private class MediaControllerCallback extends MediaControllerCompat.Callback {
 
         @Override
         public void onQueueChanged(List<MediaSessionCompat.QueueItem> queue) {
-            queueItemAdapter.setItems(queue);
+            // getQueue() only holds a window of the queue, the session extras say where it sits
+            final Bundle extras = mediaController.getExtras();
+            final int windowSize = queue != null ? queue.size() : 0;
+            final int windowOffset = extras != null ? extras.getInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_OFFSET) : 0;
+            final int queueSize = extras != null ? extras.getInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_SIZE, windowSize) : windowSize;
+            invalidatePages();
+            queueItemAdapter.setQueue(windowOffset, Math.max(queueSize, windowOffset + windowSize), queue);
         }
 
     }
@@ -0,0 +1,494 @@
+package com.apple.android.music.sdk.testapp.service;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Loads the session artwork of the current track. Images are fetched on a worker thread and kept
+ * encoded in a disk cache that ArtworkProvider serves to controllers, so only a content URI is
+ * delivered. A thumbnail for the notification is decoded alongside, downsampled while decoding
+ * and into bitmaps recycled from a pool. Only the latest request is ever delivered, starting a
+ * new one cancels the previous. Upcoming artwork can be prefetched so its load is synchronous.
+ */
+final class ArtworkLoader {
+
+    private static final String TAG = "ArtworkLoader";
+    private static final int CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final long DISK_CACHE_MAX_BYTES = 20 * 1024 * 1024;
+    private static final int POOL_MAX_BYTES = 2 * 1024 * 1024;
+    // A pooled bitmap is only reused for a decode needing at least half of its allocation
+    private static final int POOL_MAX_WASTE_FACTOR = 2;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+
+    interface Listener {
+        void onArtworkLoaded(@NonNull String url, @NonNull Uri artworkUri);
+    }
+
+    private final Context context;
+    private final File directory;
+    private final int thumbnailWidth;
+    private final int thumbnailHeight;
+    private final ExecutorService executor;
+    private final LruCache<String, Bitmap> cache;
+    private final BitmapPool pool;
+    // Loads running or queued, keyed by artwork key, whether requested by load or prefetch
+    private final Map<String, LoadTask> inFlightLoads;
+    private String pendingUrl;
+    private Listener pendingListener;
+    // Shown by the notification, so neither the bitmap nor the file may go away while it is current
+    private Bitmap deliveredArtwork;
+    private String deliveredKey;
+    private int decodeCount;
+    private int fetchCount;
+    private int reusedBitmapCount;
+
+
+    ArtworkLoader(@NonNull Context context, int thumbnailWidth, int thumbnailHeight) {
+        this.context = context.getApplicationContext();
+        directory = ArtworkProvider.getArtworkDirectory(context);
+        this.thumbnailWidth = thumbnailWidth;
+        this.thumbnailHeight = thumbnailHeight;
+        executor = Executors.newSingleThreadExecutor();
+        pool = new BitmapPool(POOL_MAX_BYTES);
+        inFlightLoads = new HashMap<>();
+        cache = new LruCache<String, Bitmap>(CACHE_MAX_BYTES) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                recycle(oldValue);
+            }
+        };
+    }
+
+
+    /**
+     * Returns the content URI of url right away if its thumbnail is in memory, which is always
+     * the case once it was prefetched. Otherwise returns null, loads url and delivers its content
+     * URI to listener on the loader thread. Any load still pending for a different url is
+     * cancelled, unless it was also prefetched.
+     */
+    @Nullable
+    synchronized Uri load(@NonNull String url, @NonNull Listener listener) {
+        final String key = ArtworkProvider.getArtworkKey(url);
+        final Bitmap cachedThumbnail = cache.get(key);
+        if (cachedThumbnail != null) {
+            cancel();
+            deliveredArtwork = cachedThumbnail;
+            deliveredKey = key;
+            return ArtworkProvider.getArtworkUri(context, key);
+        }
+        if (!url.equals(pendingUrl)) {
+            cancel();
+            pendingUrl = url;
+            if (!inFlightLoads.containsKey(key)) {
+                submit(url, key, false);
+            }
+        }
+        pendingListener = listener;
+        return null;
+    }
+
+
+    /**
+     * Fetches and decodes urls ahead of time so a later load of any of them completes
+     * synchronously. Prefetches still running for urls no longer listed are cancelled.
+     */
+    synchronized void prefetch(@NonNull List<String> urls) {
+        final Set<String> keys = new HashSet<>();
+        for (String url : urls) {
+            keys.add(ArtworkProvider.getArtworkKey(url));
+        }
+        final Iterator<LoadTask> iterator = inFlightLoads.values().iterator();
+        while (iterator.hasNext()) {
+            final LoadTask task = iterator.next();
+            if (task.prefetch && !keys.contains(task.key) && !task.url.equals(pendingUrl)) {
+                task.future.cancel(true);
+                iterator.remove();
+            }
+        }
+        for (String url : urls) {
+            final String key = ArtworkProvider.getArtworkKey(url);
+            // Also moves thumbnails already in memory to the front of the cache
+            if (cache.get(key) == null && !inFlightLoads.containsKey(key)) {
+                submit(url, key, true);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the thumbnail of artwork delivered earlier, if it is still in memory.
+     */
+    @Nullable
+    Bitmap getThumbnail(@NonNull Uri artworkUri) {
+        final String key = artworkUri.getLastPathSegment();
+        return key != null ? cache.get(key) : null;
+    }
+
+
+    synchronized void cancel() {
+        if (pendingUrl != null) {
+            final LoadTask task = inFlightLoads.get(ArtworkProvider.getArtworkKey(pendingUrl));
+            // Lookahead work is left running, it was asked for separately
+            if (task != null && !task.prefetch) {
+                task.future.cancel(true);
+                inFlightLoads.remove(task.key);
+            }
+        }
+        pendingUrl = null;
+        pendingListener = null;
+    }
+
+
+    private void submit(String url, String key, boolean prefetch) {
+        final LoadTask task = new LoadTask(url, key, prefetch);
+        inFlightLoads.put(key, task);
+        task.future = executor.submit(task);
+    }
+
+
+    void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.evictAll();
+            pool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(CACHE_MAX_BYTES / 2);
+            pool.clear();
+        }
+        Log.d(TAG, "onTrimMemory() level: " + level + " " + this);
+    }
+
+
+    void release() {
+        cancel();
+        executor.shutdownNow();
+        cache.evictAll();
+        pool.clear();
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "ArtworkLoader[cached=" + cache.size() + "B, pooled=" + pool.sizeBytes + "B, fetches=" + fetchCount
+                + ", decodes=" + decodeCount + ", reusedBitmaps=" + reusedBitmapCount + "]";
+    }
+
+
+    private synchronized void recycle(Bitmap bitmap) {
+        if (bitmap != null && bitmap != deliveredArtwork && bitmap.isMutable()) {
+            pool.put(bitmap);
+        }
+    }
+
+
+    @Nullable
+    private Bitmap loadArtwork(String url, String key) {
+        try {
+            final File file = new File(directory, key);
+            final byte[] data;
+            if (file.isFile()) {
+                data = readFile(file);
+                file.setLastModified(System.currentTimeMillis());
+            } else {
+                data = fetch(url);
+                synchronized (this) {
+                    fetchCount++;
+                }
+                // Kept even if this load was cancelled meanwhile, the track may come around again
+                writeFile(file, data);
+                trimDiskCache();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            return decode(data);
+        } catch (InterruptedIOException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not load artwork " + url, e);
+            return null;
+        }
+    }
+
+
+    private static byte[] fetch(String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+            final InputStream inputStream = connection.getInputStream();
+            try {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 16 * 1024));
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException();
+                    }
+                    outputStream.write(buffer, 0, count);
+                }
+                return outputStream.toByteArray();
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+
+    private static byte[] readFile(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int count;
+            while (offset < data.length && (count = inputStream.read(data, offset, data.length - offset)) != -1) {
+                offset += count;
+            }
+            if (offset < data.length) {
+                throw new IOException("Truncated artwork " + file);
+            }
+            return data;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+
+    private void writeFile(File file, byte[] data) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        // Written aside and renamed, so the provider never serves a partial file
+        final File temporaryFile = new File(directory, file.getName() + ".tmp");
+        final FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+
+    private void trimDiskCache() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= DISK_CACHE_MAX_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        final String keptKey;
+        synchronized (this) {
+            keptKey = deliveredKey;
+        }
+        for (int i = 0; i < files.length && totalBytes > DISK_CACHE_MAX_BYTES; i++) {
+            final long length = files[i].length();
+            if (!files[i].getName().equals(keptKey) && files[i].delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+
+    private Bitmap decode(byte[] data) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image");
+        }
+        // Power of two subsampling first, then the decoder scales the rest of the way by density
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= thumbnailWidth && options.outHeight / (sampleSize * 2) >= thumbnailHeight) {
+            sampleSize *= 2;
+        }
+        final int sampledWidth = options.outWidth / sampleSize;
+        final int sampledHeight = options.outHeight / sampleSize;
+        final float scale = Math.min(1f, Math.max((float) thumbnailWidth / sampledWidth, (float) thumbnailHeight / sampledHeight));
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        if (scale < 1f) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = Math.round(sampledWidth * scale);
+        }
+        final int width = Math.round(sampledWidth * scale);
+        final int height = Math.round(sampledHeight * scale);
+        options.inBitmap = pool.get(width * height * 4);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder refused the pooled bitmap, so decode into a new one
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode image");
+        }
+        synchronized (this) {
+            decodeCount++;
+            if (options.inBitmap != null && bitmap == options.inBitmap) {
+                reusedBitmapCount++;
+            }
+        }
+        return bitmap;
+    }
+
+
+    private final class LoadTask implements Runnable {
+
+        private final String url;
+        private final String key;
+        private final boolean prefetch;
+        private Future<?> future;
+
+        LoadTask(String url, String key, boolean prefetch) {
+            this.url = url;
+            this.key = key;
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap thumbnail = loadArtwork(url, key);
+            final Listener listener;
+            synchronized (ArtworkLoader.this) {
+                if (inFlightLoads.get(key) == this) {
+                    inFlightLoads.remove(key);
+                }
+                if (thumbnail == null) {
+                    return;
+                }
+                // Kept even when nobody waits for it any more, the track may still come up next
+                cache.put(key, thumbnail);
+                if (!url.equals(pendingUrl)) {
+                    return;
+                }
+                listener = pendingListener;
+                pendingUrl = null;
+                pendingListener = null;
+                deliveredArtwork = thumbnail;
+                deliveredKey = key;
+            }
+            listener.onArtworkLoaded(url, ArtworkProvider.getArtworkUri(context, key));
+        }
+
+    }
+
+
+    /**
+     * Bitmaps waiting to be decoded into again, bucketed by allocation size.
+     */
+    private static final class BitmapPool {
+
+        private final int maxBytes;
+        private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets;
+        private int sizeBytes;
+
+        BitmapPool(int maxBytes) {
+            this.maxBytes = maxBytes;
+            buckets = new TreeMap<>();
+        }
+
+        synchronized Bitmap get(int byteCount) {
+            final Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(byteCount);
+            if (entry == null || entry.getKey() > byteCount * POOL_MAX_WASTE_FACTOR) {
+                return null;
+            }
+            final Bitmap bitmap = entry.getValue().poll();
+            if (entry.getValue().isEmpty()) {
+                buckets.remove(entry.getKey());
+            }
+            sizeBytes -= bitmap.getAllocationByteCount();
+            return bitmap;
+        }
+
+        synchronized void put(Bitmap bitmap) {
+            final int byteCount = bitmap.getAllocationByteCount();
+            if (byteCount > maxBytes) {
+                return;
+            }
+            while (sizeBytes + byteCount > maxBytes) {
+                // Evict from the largest bucket, those are the least likely to fit a decode
+                final Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+                sizeBytes -= largest.getValue().poll().getAllocationByteCount();
+                if (largest.getValue().isEmpty()) {
+                    buckets.remove(largest.getKey());
+                }
+            }
+            ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                buckets.put(byteCount, bucket);
+            }
+            bucket.add(bitmap);
+            sizeBytes += byteCount;
+        }
+
+        synchronized void clear() {
+            buckets.clear();
+            sizeBytes = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.apple.android.music.sdk.testapp.service;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Serves the artwork cached by ArtworkLoader as read only file descriptors, so session metadata
+ * only has to carry a content URI and controllers read the encoded image straight from disk.
+ * Artwork is public catalog content, so any app may read it, but nothing can be written.
+ */
+public final class ArtworkProvider extends ContentProvider {
+
+    private static final String AUTHORITY_SUFFIX = ".artwork";
+    private static final String ARTWORK_DIRECTORY = "artwork";
+    private static final String MIME_TYPE = "image/jpeg";
+    private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{40}");
+    private static final String[] DEFAULT_PROJECTION = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+
+    @NonNull
+    static Uri getArtworkUri(@NonNull Context context, @NonNull String key) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(key)
+                .build();
+    }
+
+
+    @NonNull
+    static File getArtworkDirectory(@NonNull Context context) {
+        return new File(context.getCacheDir(), ARTWORK_DIRECTORY);
+    }
+
+
+    /**
+     * Returns the file name artwork fetched from url is cached under.
+     */
+    @NonNull
+    static String getArtworkKey(@NonNull String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Artwork is read only");
+        }
+        return ParcelFileDescriptor.open(getArtworkFile(uri), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        final File file;
+        try {
+            file = getArtworkFile(uri);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        final String[] columns = projection != null ? projection : DEFAULT_PROJECTION;
+        final Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(columns[i])) {
+                values[i] = file.getName() + ".jpg";
+            } else if (OpenableColumns.SIZE.equals(columns[i])) {
+                values[i] = file.length();
+            }
+        }
+        final MatrixCursor cursor = new MatrixCursor(columns, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return MIME_TYPE;
+    }
+
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Artwork is read only");
+    }
+
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Artwork is read only");
+    }
+
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Artwork is read only");
+    }
+
+
+    private File getArtworkFile(Uri uri) throws FileNotFoundException {
+        final String key = uri.getLastPathSegment();
+        // Only ever resolves to a file directly inside the artwork directory
+        if (key == null || uri.getPathSegments().size() != 1 || !KEY_PATTERN.matcher(key).matches()) {
+            throw new FileNotFoundException("No artwork for " + uri);
+        }
+        final File file = new File(getArtworkDirectory(getContext()), key);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No artwork for " + uri);
+        }
+        return file;
+    }
+
+}
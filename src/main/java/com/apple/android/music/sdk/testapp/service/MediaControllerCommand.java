@@ -8,11 +8,39 @@ public interface MediaControllerCommand {
     String COMMAND_REMOVE_QUEUE_ITEM = "com.apple.android.music.playback.command.REMOVE_QUEUE_ITEM";
     String COMMAND_MOVE_QUEUE_ITEM = "com.apple.android.music.playback.command.MOVE_QUEUE_ITEM";
     String COMMAND_ADD_QUEUE_ITEMS = "com.apple.android.music.playback.command.ADD_QUEUE_ITEMS";
+    // Replies with up to COMMAND_ARGUMENT_QUEUE_COUNT queue items starting at COMMAND_ARGUMENT_QUEUE_OFFSET
+    String COMMAND_GET_QUEUE_ITEMS = "com.apple.android.music.playback.command.GET_QUEUE_ITEMS";
+    // Submits COMMAND_ARGUMENT_QUEUE_OPERATIONS in order and publishes the queue once they are applied, replies with COMMAND_RESULT_QUEUE_OPERATION_RESULTS
+    String COMMAND_EDIT_QUEUE = "com.apple.android.music.playback.command.EDIT_QUEUE";
 
     String COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID = "com.apple.android.music.playback.command.ARGUMENT_PLAYBACK_QUEUE_ID";
     String COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID_TARGET = "com.apple.android.music.playback.command.ARGUMENT_PLAYBACK_QUEUE_ID_TARGET";
     String COMMAND_ARGUMENT_PLAYBACK_QUEUE_MOVE_TARGET_TYPE = "com.apple.android.music.playback.command.ARGUMENT_PLAYBACK_QUEUE_MOVE_TARGET_TYPE";
     String COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE = "com.apple.android.music.playback.command.ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE";
     String COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER = "com.apple.android.music.playback.command.ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER";
+    String COMMAND_ARGUMENT_QUEUE_OFFSET = "com.apple.android.music.playback.command.ARGUMENT_QUEUE_OFFSET";
+    String COMMAND_ARGUMENT_QUEUE_COUNT = "com.apple.android.music.playback.command.ARGUMENT_QUEUE_COUNT";
+    // A list of Bundles, each holding a QUEUE_OPERATION_* type and the arguments of the matching single item command
+    String COMMAND_ARGUMENT_QUEUE_OPERATIONS = "com.apple.android.music.playback.command.ARGUMENT_QUEUE_OPERATIONS";
+    String COMMAND_ARGUMENT_QUEUE_OPERATION_TYPE = "com.apple.android.music.playback.command.ARGUMENT_QUEUE_OPERATION_TYPE";
+
+    String COMMAND_RESULT_QUEUE_ITEMS = "com.apple.android.music.playback.command.RESULT_QUEUE_ITEMS";
+    // One QUEUE_OPERATION_RESULT_* per operation, in the order they were sent
+    String COMMAND_RESULT_QUEUE_OPERATION_RESULTS = "com.apple.android.music.playback.command.RESULT_QUEUE_OPERATION_RESULTS";
+
+    int QUEUE_OPERATION_REMOVE = 1;
+    int QUEUE_OPERATION_MOVE = 2;
+    int QUEUE_OPERATION_ADD = 3;
+
+    // The operation was valid and has been submitted to the player, which applies it asynchronously.
+    // It can still fail there, e.g. when the items of an add can not be resolved from the catalog
+    int QUEUE_OPERATION_RESULT_OK = 0;
+    // The item was not in the queue, or an earlier operation of the same batch removed it
+    int QUEUE_OPERATION_RESULT_UNKNOWN_ITEM = 1;
+    int QUEUE_OPERATION_RESULT_INVALID = 2;
+
+    // Session extras describing which part of the queue getQueue() holds
+    String SESSION_EXTRA_QUEUE_OFFSET = "com.apple.android.music.playback.extra.QUEUE_OFFSET";
+    String SESSION_EXTRA_QUEUE_SIZE = "com.apple.android.music.playback.extra.QUEUE_SIZE";
 
 }
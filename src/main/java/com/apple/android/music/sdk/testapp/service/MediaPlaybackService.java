@@ -24,6 +24,7 @@ import com.apple.android.music.playback.controller.MediaPlayerController;
 import com.apple.android.music.playback.controller.MediaPlayerControllerFactory;
 import com.apple.android.music.playback.model.PlayerQueueItem;
 import com.apple.android.music.sdk.testapp.util.AppleMusicTokenProvider;
+import com.apple.android.music.sdk.testapp.util.BrowseClientProfile;
 import com.apple.android.music.sdk.testapp.util.LocalMediaProvider;
 
 import java.util.List;
@@ -31,7 +32,7 @@ import java.util.List;
 /**
  * Copyright (C) 2017 Apple, Inc. All rights reserved.
  */
-public final class MediaPlaybackService extends MediaBrowserServiceCompat implements MediaPlayerController.Listener, Handler.Callback {
+public final class MediaPlaybackService extends MediaBrowserServiceCompat implements MediaPlayerController.Listener, LocalMediaProvider.Listener, Handler.Callback {
 
     private static final String TAG = "MediaPlaybackService";
     private static final int MESSAGE_START_COMMAND = 1;
@@ -43,6 +44,8 @@ public final class MediaPlaybackService extends MediaBrowserServiceCompat implem
     private MediaSessionCompat mediaSession;
     private PlaybackNotificationManager playbackNotificationManager;
     private LocalMediaProvider mediaProvider;
+    private ArtworkLoader artworkLoader;
+    private MediaSessionManager sessionManager;
 
 
     static {
@@ -68,17 +71,21 @@ public final class MediaPlaybackService extends MediaBrowserServiceCompat implem
         serviceHandlerThread.start();
         serviceHandler = new Handler(serviceHandlerThread.getLooper(), this);
 
-        playbackNotificationManager = new PlaybackNotificationManager(this, serviceHandler);
+        // Controllers read the full artwork through ArtworkProvider, only the notification needs a bitmap
+        final int thumbnailSize = getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        artworkLoader = new ArtworkLoader(this, thumbnailSize, thumbnailSize);
+        playbackNotificationManager = new PlaybackNotificationManager(this, serviceHandler, artworkLoader);
 
         playerController = MediaPlayerControllerFactory.createLocalController(this, serviceHandler, new AppleMusicTokenProvider(this));
         playerController.addListener(this);
 
+        mediaProvider = new LocalMediaProvider(this, this);
+
         mediaSession = new MediaSessionCompat(this, TAG);
         mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS | MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS);
-        mediaSession.setCallback(new MediaSessionManager(this, serviceHandler, playerController, mediaSession), serviceHandler);
+        sessionManager = new MediaSessionManager(this, serviceHandler, playerController, mediaSession, mediaProvider, artworkLoader);
+        mediaSession.setCallback(sessionManager, serviceHandler);
         setSessionToken(mediaSession.getSessionToken());
-
-        mediaProvider = new LocalMediaProvider(this);
     }
 
 
@@ -86,12 +93,23 @@ public final class MediaPlaybackService extends MediaBrowserServiceCompat implem
     public void onDestroy() {
         super.onDestroy();
         playbackNotificationManager.stop(true);
+        mediaProvider.release();
+        artworkLoader.release();
         mediaSession.release();
         playerController.release();
         serviceHandlerThread.quit();
     }
 
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mediaProvider.onTrimMemory(level);
+        artworkLoader.onTrimMemory(level);
+        Log.d(TAG, "onTrimMemory() level: " + level + " " + sessionManager);
+    }
+
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         serviceHandler.obtainMessage(MESSAGE_START_COMMAND, intent).sendToTarget();
@@ -103,13 +121,38 @@ public final class MediaPlaybackService extends MediaBrowserServiceCompat implem
     @Override
     public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
         // TODO: This needs to make sure the client is allowed to browse
+        Log.d(TAG, "onGetRoot() client: " + clientPackageName + " " + BrowseClientProfile.fromRootHints(rootHints));
         return new BrowserRoot(LocalMediaProvider.MEDIA_ROOT_ID, null);
     }
 
 
     @Override
     public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
-        mediaProvider.loadMediaItems(parentId, result);
+        mediaProvider.loadMediaItems(parentId, result, getClientProfile());
+    }
+
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result, @NonNull Bundle options) {
+        mediaProvider.loadMediaItems(parentId, result, options, getClientProfile());
+    }
+
+
+    @Override
+    public void onLoadItem(String itemId, @NonNull Result<MediaBrowserCompat.MediaItem> result) {
+        mediaProvider.loadMediaItem(itemId, result, getClientProfile());
+    }
+
+
+    @Override
+    public void onSearch(@NonNull String query, @Nullable Bundle extras, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
+        mediaProvider.search(query, result, getClientProfile());
+    }
+
+
+    @Override
+    public void onChildrenChanged(@NonNull String parentId) {
+        notifyChildrenChanged(parentId);
     }
 
 
@@ -204,4 +247,11 @@ public final class MediaPlaybackService extends MediaBrowserServiceCompat implem
 
     private void handleIntent(Intent intent) {
     }
+
+
+    private BrowseClientProfile getClientProfile() {
+        // Only valid inside browse callbacks, which is the only place this is called from. The hints
+        // live in the connection, so nothing is kept for clients that have disconnected.
+        return BrowseClientProfile.fromRootHints(getBrowserRootHints());
+    }
 }
@@ -2,21 +2,21 @@ package com.apple.android.music.sdk.testapp.service;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
@@ -24,6 +24,7 @@ import com.apple.android.music.playback.model.MediaContainerType;
 import com.apple.android.music.playback.model.MediaItemType;
 import com.apple.android.music.playback.model.MediaPlayerException;
 import com.apple.android.music.playback.model.ErrorConditionException;
+import com.apple.android.music.playback.model.PlaybackQueueMoveTargetType;
 import com.apple.android.music.playback.model.PlaybackRepeatMode;
 import com.apple.android.music.playback.model.PlaybackShuffleMode;
 import com.apple.android.music.playback.model.PlaybackState;
@@ -34,49 +35,135 @@ import com.apple.android.music.playback.queue.CatalogPlaybackQueueItemProvider;
 import com.apple.android.music.playback.queue.PlaybackQueueInsertionType;
 import com.apple.android.music.playback.queue.PlaybackQueueItemProvider;
 import com.apple.android.music.sdk.testapp.R;
-import com.squareup.picasso.Picasso;
-import com.squareup.picasso.Target;
+import com.apple.android.music.sdk.testapp.util.LocalMediaProvider;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 final class MediaSessionManager extends MediaSessionCompat.Callback implements MediaPlayerController.Listener, Handler.Callback {
 
     private static final String TAG = "MediaSessionManager";
     private static final DateFormat RELEASE_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+    private static final int METADATA_CACHE_SIZE = 16;
     private static final int MESSAGE_INIT = 1;
-    private static final int MESSAGE_LOAD_ARTWORK = 2;
     private static final int MESSAGE_UPDATE_ARTWORK = 3;
+    private static final int MESSAGE_PUBLISH_PLAYBACK_STATE = 4;
+    private static final int MESSAGE_PREPARE_UPCOMING_ITEMS = 5;
+    private static final int MESSAGE_PUBLISH_EDITED_QUEUE = 6;
+    // A batch edit is published once the player's queue shows each of its operations applied,
+    // or after this long if some never show, e.g. catalog items that could not be resolved
+    private static final long QUEUE_EDIT_TIMEOUT_MS = 2000;
+    private static final int MESSAGE_APPLY_SKIP = 7;
+    private static final int MESSAGE_APPLY_SEEK = 8;
+    // A skip pressed this soon after the previous one is held, together with any that follow,
+    // until presses stop for this long and then applied as one. Seeks are always held.
+    private static final long SKIP_COALESCE_MS = 250;
+    private static final long SEEK_COALESCE_MS = 150;
+    // A burst that keeps going is still applied at least this often
+    private static final long TRANSPORT_MAX_DELAY_MS = 1000;
+    // Like the player, a previous press this far into a track restarts it instead
+    private static final long PREVIOUS_RESTART_THRESHOLD_MS = 3000;
+    // Fast forward and rewind steps double while pressed in quick succession, up to 8 times the base step
+    private static final long SCRUB_STEP_MS = 10000;
+    private static final int SCRUB_MAX_ACCELERATION_SHIFT = 3;
+    private static final long SEEK_ACTIONS = PlaybackStateCompat.ACTION_SEEK_TO | PlaybackStateCompat.ACTION_FAST_FORWARD | PlaybackStateCompat.ACTION_REWIND;
+    private static final long SCRUB_ACCELERATION_WINDOW_MS = 1000;
+    // How many items after the current one get their metadata and artwork ready ahead of time
+    private static final int LOOKAHEAD_ITEM_COUNT = 2;
+    // Lets the transition itself be published before the lookahead work is queued
+    private static final long LOOKAHEAD_DELAY_MS = 500;
+    // Buffering and position updates arriving within this window are published together
+    private static final long PLAYBACK_STATE_COALESCE_MS = 150;
+    // Controllers extrapolate the position themselves, smaller differences are not worth an update
+    private static final long PLAYBACK_POSITION_TOLERANCE_MS = 250;
+    private static final long BUFFERED_POSITION_TOLERANCE_MS = 1000;
+    private static final int SEARCH_QUEUE_LIMIT = 100;
+    // Only this many items around the current one are published, so no queue outgrows a Binder transaction
+    private static final int QUEUE_WINDOW_SIZE = 100;
 
     private final Context context;
     private final MediaPlayerController playerController;
     private final MediaSessionCompat mediaSession;
-    private final MediaMetadataCompat.Builder metadataBuilder;
-    private MediaMetadataCompat metadata;
+    private final LocalMediaProvider mediaProvider;
+    // Snapshots of recently played queue items by playback queue id, least recently used first.
+    // Like all metadata they are only built and read on the background handler thread.
+    private final Map<Long, MetadataSnapshot> metadataSnapshots;
+    private MetadataSnapshot publishedMetadata;
+    private int suppressedMetadataCount;
     private final PlaybackStateCompat.Builder playbackStateBuilder;
+    private volatile int requestedPlaybackState;
+    private volatile boolean requestedBuffering;
+    private PlaybackStateCompat publishedPlaybackState;
+    private Boolean sessionActive;
+    private final AtomicInteger suppressedPlaybackStateCount;
+    private int publishedPlaybackStateCount;
+    // Track changes published before their artwork was ready
+    private int artworkMissCount;
     private final Handler backgroundHandler;
-    private final Handler mainHandler;
     private final int artworkWidth;
     private final int artworkHeight;
-    private AlbumArtworkTarget artworkTarget;
-    private ArrayList<MediaSessionCompat.QueueItem> queueItems;
-
-
-    MediaSessionManager(@NonNull Context context, @NonNull Handler backgroundHandler, @NonNull MediaPlayerController playerController, @NonNull MediaSessionCompat mediaSession) {
+    private final ArtworkLoader artworkLoader;
+    private final Map<String, CommandHandler> commandHandlers;
+    // Queue ids pending batch edits leave behind, in order, or null when no edit is pending.
+    // Items they add are not known up front and are tracked by pendingQueueAddCount instead.
+    private List<Long> expectedQueueIds;
+    // Every queue id pending batch edits started from, removed ones included
+    private Set<Long> editedQueueIds;
+    private int pendingQueueAddCount;
+    // Net number of items pending skips move by, positive for next
+    private int pendingSkipOffset;
+    private long skipBurstStartTime;
+    private long lastSkipRequestTime;
+    private long pendingSeekPosition = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
+    private long seekBurstStartTime;
+    private int scrubDirection;
+    private int scrubRepeatCount;
+    private long lastScrubTime;
+    private int coalescedTransportCommandCount;
+    private List<MediaSessionCompat.QueueItem> queueItems;
+    private List<PlayerQueueItem> playbackQueueItems;
+    private int queueWindowOffset;
+    private Bundle sessionExtras;
+    // Built queue items by playback queue id, so a queue change only builds the items it added
+    private final Map<Long, MediaSessionCompat.QueueItem> queueItemCache;
+    private int rebuiltQueueItemCount;
+    private int reusedQueueItemCount;
+    // Bumped by every request that changes what plays, so a search that resolves late can tell it was superseded
+    private int searchRequestId;
+
+
+    MediaSessionManager(@NonNull Context context, @NonNull Handler backgroundHandler, @NonNull MediaPlayerController playerController, @NonNull MediaSessionCompat mediaSession, @NonNull LocalMediaProvider mediaProvider, @NonNull ArtworkLoader artworkLoader) {
         this.context = context;
         this.playerController = playerController;
         this.playerController.addListener(this);
         this.mediaSession = mediaSession;
-        metadataBuilder = new MediaMetadataCompat.Builder();
+        this.mediaProvider = mediaProvider;
+        this.artworkLoader = artworkLoader;
+        commandHandlers = createCommandHandlers();
+        metadataSnapshots = new LinkedHashMap<Long, MetadataSnapshot>(METADATA_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MetadataSnapshot> eldest) {
+                return size() > METADATA_CACHE_SIZE;
+            }
+        };
         playbackStateBuilder = new PlaybackStateCompat.Builder();
+        requestedPlaybackState = -1;
+        suppressedPlaybackStateCount = new AtomicInteger();
+        queueItems = new ArrayList<>();
+        playbackQueueItems = new ArrayList<>();
+        queueItemCache = new HashMap<>();
         this.backgroundHandler = new Handler(backgroundHandler.getLooper(), this);
-        mainHandler = new Handler(Looper.getMainLooper(), this);
         artworkWidth = context.getResources().getDimensionPixelSize(R.dimen.notification_artwork_width);
         artworkHeight = context.getResources().getDimensionPixelSize(R.dimen.notification_artwork_width);
         this.backgroundHandler.sendEmptyMessage(MESSAGE_INIT);
@@ -85,19 +172,59 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
 
     @Override
     public void onCommand(String command, Bundle extras, ResultReceiver cb) {
-        extras.setClassLoader(getClass().getClassLoader());
-        if (MediaControllerCommand.COMMAND_REMOVE_QUEUE_ITEM.equals(command)) {
-            playerController.removeQueueItemWithId(extras.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID));
-        } else if (MediaControllerCommand.COMMAND_MOVE_QUEUE_ITEM.equals(command)) {
-            final long sourceItemId = extras.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID);
-            final long targetItemId = extras.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID_TARGET);
-            final int moveTargetType = extras.getInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_MOVE_TARGET_TYPE);
-            playerController.moveQueueItemWithId(sourceItemId, targetItemId, moveTargetType);
-        } else if (MediaControllerCommand.COMMAND_ADD_QUEUE_ITEMS.equals(command)) {
-            final PlaybackQueueItemProvider provider = extras.getParcelable(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER);
-            final @PlaybackQueueInsertionType int insertionType = extras.getInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE);
-            playerController.addQueueItems(provider, insertionType);
+        final CommandHandler handler = commandHandlers.get(command);
+        if (handler == null) {
+            Log.d(TAG, "onCommand() unknown command: " + command);
+            return;
         }
+        final Bundle arguments = extras != null ? extras : new Bundle();
+        arguments.setClassLoader(getClass().getClassLoader());
+        handler.onCommand(arguments, cb);
+    }
+
+
+    private Map<String, CommandHandler> createCommandHandlers() {
+        final Map<String, CommandHandler> handlers = new HashMap<>();
+        handlers.put(MediaControllerCommand.COMMAND_REMOVE_QUEUE_ITEM, new CommandHandler() {
+            @Override
+            public void onCommand(@NonNull Bundle extras, @Nullable ResultReceiver cb) {
+                cancelPendingSearch();
+                playerController.removeQueueItemWithId(extras.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID));
+            }
+        });
+        handlers.put(MediaControllerCommand.COMMAND_MOVE_QUEUE_ITEM, new CommandHandler() {
+            @Override
+            public void onCommand(@NonNull Bundle extras, @Nullable ResultReceiver cb) {
+                final long sourceItemId = extras.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID);
+                final long targetItemId = extras.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID_TARGET);
+                final int moveTargetType = extras.getInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_MOVE_TARGET_TYPE);
+                cancelPendingSearch();
+                playerController.moveQueueItemWithId(sourceItemId, targetItemId, moveTargetType);
+            }
+        });
+        handlers.put(MediaControllerCommand.COMMAND_ADD_QUEUE_ITEMS, new CommandHandler() {
+            @Override
+            public void onCommand(@NonNull Bundle extras, @Nullable ResultReceiver cb) {
+                final PlaybackQueueItemProvider provider = extras.getParcelable(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER);
+                final @PlaybackQueueInsertionType int insertionType = extras.getInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE);
+                cancelPendingSearch();
+                playerController.addQueueItems(provider, insertionType);
+            }
+        });
+        handlers.put(MediaControllerCommand.COMMAND_GET_QUEUE_ITEMS, new CommandHandler() {
+            @Override
+            public void onCommand(@NonNull Bundle extras, @Nullable ResultReceiver cb) {
+                sendQueueItems(extras.getInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OFFSET),
+                        extras.getInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_COUNT), cb);
+            }
+        });
+        handlers.put(MediaControllerCommand.COMMAND_EDIT_QUEUE, new CommandHandler() {
+            @Override
+            public void onCommand(@NonNull Bundle extras, @Nullable ResultReceiver cb) {
+                editQueue(extras.<Bundle>getParcelableArrayList(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OPERATIONS), cb);
+            }
+        });
+        return handlers;
     }
 
 
@@ -119,6 +246,7 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
 
     @Override
     public void onPrepareFromSearch(String query, Bundle extras) {
+        prepareFromSearch(query, false);
     }
 
 
@@ -129,30 +257,21 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
 
     @Override
     public void onPlay() {
+        cancelPendingSearch();
         playerController.play();
     }
 
 
     @Override
     public void onPlayFromMediaId(String mediaId, Bundle extras) {
-        CatalogPlaybackQueueItemProvider.Builder builder = new CatalogPlaybackQueueItemProvider.Builder();
-        int containerType = MediaContainerType.NONE;
-        int itemType = MediaItemType.UNKNOWN;
-        if (extras != null) {
-            containerType = extras.getInt("containerType", MediaContainerType.NONE);
-            itemType = extras.getInt("itemType", MediaItemType.UNKNOWN);
-        }
-        if (containerType != MediaContainerType.NONE) {
-            builder.containers(containerType, mediaId);
-        } else {
-            builder.items(itemType, mediaId);
-        }
-        playerController.prepare(builder.build(), true);
+        cancelPendingSearch();
+        playerController.prepare(createQueueProvider(mediaId, extras), true);
     }
 
 
     @Override
     public void onPlayFromSearch(String query, Bundle extras) {
+        prepareFromSearch(query, true);
     }
 
 
@@ -163,47 +282,54 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
 
     @Override
     public void onSkipToQueueItem(long id) {
+        // An explicit target replaces whatever skips and seeks were still pending
+        cancelPendingTransport();
+        cancelPendingSearch();
         playerController.skipToQueueItemWithId(id);
     }
 
 
     @Override
     public void onPause() {
+        cancelPendingSearch();
         playerController.pause();
     }
 
 
     @Override
     public void onSkipToNext() {
-        playerController.skipToNextItem();
+        requestSkip(1);
     }
 
 
     @Override
     public void onSkipToPrevious() {
-        playerController.skipToPreviousItem();
+        requestSkip(-1);
     }
 
 
     @Override
     public void onFastForward() {
+        requestScrub(1);
     }
 
 
     @Override
     public void onRewind() {
+        requestScrub(-1);
     }
 
 
     @Override
     public void onStop() {
+        cancelPendingSearch();
         playerController.stop();
     }
 
 
     @Override
     public void onSeekTo(long pos) {
-        playerController.seekToPosition(pos);
+        requestSeek(pos);
     }
 
 
@@ -252,7 +378,7 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
     @Override
     public void onPlaybackStateChanged(@NonNull MediaPlayerController playerController, int previousState, int currentState) {
         Log.d(TAG, "onPlaybackStateChanged() prevState: " + previousState + " currentState: " + currentState);
-        updatePlaybackState(currentState, playerController.isBuffering());
+        updatePlaybackState(currentState, playerController.isBuffering(), false);
     }
 
     @Override
@@ -264,7 +390,7 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
     @Override
     public void onBufferingStateChanged(@NonNull MediaPlayerController playerController, boolean buffering) {
         Log.d(TAG, "onBufferingStateChanged() buffering: " + buffering);
-        updatePlaybackState(playerController.getPlaybackState(), buffering);
+        updatePlaybackState(playerController.getPlaybackState(), buffering, false);
     }
 
 
@@ -272,8 +398,12 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
     public void onCurrentItemChanged(@NonNull MediaPlayerController playerController, @Nullable PlayerQueueItem previousItem, @Nullable PlayerQueueItem currentItem) {
         Log.d(TAG, "onCurrentItemChanged() prevItemQueueId: " + (previousItem != null ? previousItem.getPlaybackQueueId() : -1)
         + " currItemQueueId: " + (currentItem != null ? currentItem.getPlaybackQueueId() : -1));
-        updateMetaData(previousItem, currentItem);
-        updatePlaybackState(playerController.getPlaybackState(), playerController.isBuffering());
+        updateMetaData(currentItem);
+        updatePlaybackState(playerController.getPlaybackState(), playerController.isBuffering(), true);
+        if (expectedQueueIds == null) {
+            publishQueue(false);
+        }
+        scheduleUpcomingItems();
     }
 
     @Override
@@ -284,18 +414,42 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
     @Override
     public void onMetadataUpdated(@NonNull MediaPlayerController playerController, @NonNull PlayerQueueItem currentItem) {
         Log.d(TAG, "onMetadataUpdated() item: " + currentItem.getPlaybackQueueId());
-        updateMetaData(null, currentItem);
+        updateMetaData(currentItem);
+        final MediaSessionCompat.QueueItem cachedItem = queueItemCache.get(currentItem.getPlaybackQueueId());
+        if (cachedItem != null && !isQueueItemCurrent(cachedItem, currentItem.getItem())) {
+            queueItemCache.remove(currentItem.getPlaybackQueueId());
+            publishQueue(true);
+        }
     }
 
     @Override
     public void onPlaybackQueueChanged(@NonNull MediaPlayerController playerController, @NonNull List<PlayerQueueItem> playbackQueueItems) {
         Log.d(TAG, "onPlaybackQueueChanged() numOfItems: " + playbackQueueItems.size());
-        updateQueueItems(playbackQueueItems);
+        this.playbackQueueItems = playbackQueueItems;
+        if (expectedQueueIds != null) {
+            // Published once the whole batch has been applied
+            if (!isQueueEditApplied()) {
+                return;
+            }
+            finishQueueEdit();
+        }
+        publishQueue(false);
+        scheduleUpcomingItems();
     }
 
     @Override
     public void onPlaybackQueueItemsAdded(@NonNull MediaPlayerController playerController, int queueInsertionType, int containerType, int itemType) {
         Log.d(TAG, "onPlaybackQueueItemsAdded() insertionType: " + queueInsertionType + " containerType: " + containerType + " itemType: " + itemType);
+        if (expectedQueueIds != null && pendingQueueAddCount > 0) {
+            pendingQueueAddCount--;
+            // The queue change for these items may be reported before or after this callback
+            playbackQueueItems = playerController.getQueueItems();
+            if (isQueueEditApplied()) {
+                finishQueueEdit();
+                publishQueue(false);
+                scheduleUpcomingItems();
+            }
+        }
     }
 
     @Override
@@ -329,20 +483,31 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
             case MESSAGE_INIT:
                 init();
                 return true;
-            case MESSAGE_LOAD_ARTWORK:
-                String artworkUrl = (String)msg.obj;
-                if (artworkTarget != null) {
-                    Picasso.get().cancelRequest(artworkTarget);
-                }
-                artworkTarget = new AlbumArtworkTarget(artworkUrl);
-                Picasso.get().load(artworkUrl).into(artworkTarget);
+            case MESSAGE_PUBLISH_PLAYBACK_STATE:
+                publishPlaybackState();
+                return true;
+            case MESSAGE_PREPARE_UPCOMING_ITEMS:
+                prepareUpcomingItems();
+                return true;
+            case MESSAGE_APPLY_SKIP:
+                applySkip();
+                return true;
+            case MESSAGE_APPLY_SEEK:
+                applySeek();
+                return true;
+            case MESSAGE_PUBLISH_EDITED_QUEUE:
+                Log.d(TAG, "Queue edit timed out with " + pendingQueueAddCount + " adds unreported");
+                finishQueueEdit();
+                playbackQueueItems = playerController.getQueueItems();
+                publishQueue(false);
+                scheduleUpcomingItems();
                 return true;
             case MESSAGE_UPDATE_ARTWORK:
-                Pair<String, Bitmap> artworkData = (Pair<String, Bitmap>)msg.obj;
-                if (artworkData.first.equals(metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI))) {
-                    metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, artworkData.second);
-                    metadata = metadataBuilder.build();
-                    mediaSession.setMetadata(metadata);
+                Pair<String, Uri> artworkData = (Pair<String, Uri>)msg.obj;
+                final MetadataSnapshot published = publishedMetadata;
+                if (published != null && artworkData.first.equals(published.artworkUrl) && !artworkData.second.equals(published.artworkUri)) {
+                    publishedMetadata = published.withArtwork(artworkData.second);
+                    mediaSession.setMetadata(publishedMetadata.getMetadata());
                 }
                 return true;
         }
@@ -351,97 +516,677 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
 
 
     private void init() {
-        queueItems = new ArrayList<>();
-        updatePlaybackState(playerController.getPlaybackState(), playerController.isBuffering());
-        updateMetaData(null, playerController.getCurrentItem());
-        updateQueueItems(playerController.getQueueItems());
-    }
-
-
-    private void updatePlaybackState(@PlaybackState int currentState, boolean buffering) {
-        playbackStateBuilder.setState(convertPlaybackState(currentState, buffering), playerController.getCurrentPosition(), playerController.getPlaybackRate());
-        playbackStateBuilder.setBufferedPosition(playerController.getBufferedPosition());
-        playbackStateBuilder.setActions(allowedActions(playerController));
-        mediaSession.setPlaybackState(playbackStateBuilder.build());
-        mediaSession.setActive(currentState != PlaybackState.STOPPED);
-    }
-
-
-    private void updateMetaData(PlayerQueueItem previousItem, PlayerQueueItem currentItem) {
-        String title = null;
-        String albumTitle = null;
-        String artistName = null;
-        String albumArtistName = null;
-        long duration = -1;
-        String releaseDate = null;
-        String genreName = null;
-        String composerName = null;
-        String url = null;
-        String artworkUrl = null;
-
-        if (currentItem != null) {
-            final PlayerMediaItem item = currentItem.getItem();
-            title = item.getTitle();
-            albumTitle = item.getAlbumTitle();
-            artistName = item.getArtistName();
-            albumArtistName = item.getAlbumArtistName();
-            duration = item.getDuration();
-            releaseDate = formatReleaseDate(item.getReleaseDate());
-            genreName = item.getGenreName();
-            composerName = item.getComposerName();
-            url = item.getUrl();
-            artworkUrl = item.getArtworkUrl(artworkWidth, artworkHeight);
-        }
-
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, title);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM, albumTitle);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artistName);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ARTIST, albumArtistName);
-        metadataBuilder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_DATE, releaseDate);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_GENRE, genreName);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_COMPOSER, composerName);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI, url);
-        metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, artworkUrl);
-        // TODO: Add additional fields
-
-        boolean artworkChanged = loadAlbumArtwork(currentItem, previousItem);
-        if (artworkChanged) {
-            metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, null);
-        }
-
-        metadata = metadataBuilder.build();
-        mediaSession.setMetadata(metadata);
-    }
-
-
-    private void updateQueueItems(List<PlayerQueueItem> playbackQueueItems) {
-        final int itemCount = playbackQueueItems.size();
-        queueItems.clear();
-        queueItems.ensureCapacity(itemCount);
-        final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder();
+        updatePlaybackState(playerController.getPlaybackState(), playerController.isBuffering(), true);
+        updateMetaData(playerController.getCurrentItem());
+        playbackQueueItems = playerController.getQueueItems();
+        publishQueue(false);
+        scheduleUpcomingItems();
+    }
+
+
+    @Override
+    public String toString() {
+        return "MediaSessionManager[rebuiltQueueItems=" + rebuiltQueueItemCount + ", reusedQueueItems=" + reusedQueueItemCount
+                + ", suppressedPlaybackStates=" + suppressedPlaybackStateCount.get()
+                + ", coalescedTransportCommands=" + coalescedTransportCommandCount + "]";
+    }
+
+
+    /**
+     * Requests a playback state update. Play, pause, stop and track changes are published right
+     * away, anything else is merged with the updates that follow within PLAYBACK_STATE_COALESCE_MS.
+     * Publishing always happens on the background handler.
+     */
+    private void updatePlaybackState(@PlaybackState int currentState, boolean buffering, boolean transition) {
+        final boolean stateChanged = currentState != requestedPlaybackState;
+        requestedPlaybackState = currentState;
+        requestedBuffering = buffering;
+        if (stateChanged || transition) {
+            backgroundHandler.removeMessages(MESSAGE_PUBLISH_PLAYBACK_STATE);
+            backgroundHandler.sendMessageAtFrontOfQueue(backgroundHandler.obtainMessage(MESSAGE_PUBLISH_PLAYBACK_STATE));
+        } else if (!backgroundHandler.hasMessages(MESSAGE_PUBLISH_PLAYBACK_STATE)) {
+            backgroundHandler.sendEmptyMessageDelayed(MESSAGE_PUBLISH_PLAYBACK_STATE, PLAYBACK_STATE_COALESCE_MS);
+        } else {
+            suppressedPlaybackStateCount.incrementAndGet();
+        }
+    }
+
+
+    private void publishPlaybackState() {
+        final int playbackState = requestedPlaybackState;
+        final int state = convertPlaybackState(playbackState, requestedBuffering);
+        final long position = playerController.getCurrentPosition();
+        final float playbackRate = playerController.getPlaybackRate();
+        final long bufferedPosition = playerController.getBufferedPosition();
+        final long actions = allowedActions(playerController);
+        if (isPlaybackStatePublished(state, position, playbackRate, bufferedPosition, actions)) {
+            suppressedPlaybackStateCount.incrementAndGet();
+        } else {
+            playbackStateBuilder.setState(state, position, playbackRate);
+            playbackStateBuilder.setBufferedPosition(bufferedPosition);
+            playbackStateBuilder.setActions(actions);
+            publishedPlaybackState = playbackStateBuilder.build();
+            mediaSession.setPlaybackState(publishedPlaybackState);
+            publishedPlaybackStateCount++;
+            Log.d(TAG, "publishPlaybackState() state: " + state + " published: " + publishedPlaybackStateCount
+                    + " suppressed: " + suppressedPlaybackStateCount.get());
+        }
+        final boolean active = playbackState != PlaybackState.STOPPED;
+        if (sessionActive == null || sessionActive != active) {
+            sessionActive = active;
+            mediaSession.setActive(active);
+        }
+    }
+
+
+    private boolean isPlaybackStatePublished(int state, long position, float playbackRate, long bufferedPosition, long actions) {
+        final PlaybackStateCompat published = publishedPlaybackState;
+        if (published == null || published.getState() != state || published.getActions() != actions
+                || published.getPlaybackSpeed() != playbackRate) {
+            return false;
+        }
+        long expectedPosition = published.getPosition();
+        if (state == PlaybackStateCompat.STATE_PLAYING) {
+            expectedPosition += (long) ((SystemClock.elapsedRealtime() - published.getLastPositionUpdateTime()) * playbackRate);
+        }
+        return Math.abs(position - expectedPosition) < PLAYBACK_POSITION_TOLERANCE_MS
+                && Math.abs(bufferedPosition - published.getBufferedPosition()) < BUFFERED_POSITION_TOLERANCE_MS;
+    }
+
+
+    int getSuppressedMetadataCount() {
+        return suppressedMetadataCount;
+    }
+
+
+    private void updateMetaData(PlayerQueueItem currentItem) {
+        final MetadataSnapshot published = publishedMetadata;
+        final MetadataSnapshot snapshot = getMetadataSnapshot(currentItem);
+        if (snapshot.equals(published)) {
+            suppressedMetadataCount++;
+            Log.d(TAG, "updateMetaData() unchanged, suppressed: " + suppressedMetadataCount);
+            return;
+        }
+        MetadataSnapshot publishedSnapshot = snapshot;
+        if (published != null && TextUtils.equals(snapshot.artworkUrl, published.artworkUrl)) {
+            if (published.artworkUri != null) {
+                publishedSnapshot = snapshot.withArtwork(published.artworkUri);
+            }
+        } else if (snapshot.artworkUrl != null) {
+            // Prefetched artwork is returned right away, so the transition is published in one update
+            final Uri artworkUri = artworkLoader.load(snapshot.artworkUrl, new ArtworkLoader.Listener() {
+                @Override
+                public void onArtworkLoaded(@NonNull String url, @NonNull Uri artworkUri) {
+                    backgroundHandler.obtainMessage(MESSAGE_UPDATE_ARTWORK, new Pair<>(url, artworkUri)).sendToTarget();
+                }
+            });
+            if (artworkUri != null) {
+                publishedSnapshot = snapshot.withArtwork(artworkUri);
+            } else {
+                artworkMissCount++;
+            }
+        }
+        publishedMetadata = publishedSnapshot;
+        mediaSession.setMetadata(publishedSnapshot.getMetadata());
+    }
+
+
+    private void scheduleUpcomingItems() {
+        backgroundHandler.removeMessages(MESSAGE_PREPARE_UPCOMING_ITEMS);
+        backgroundHandler.sendEmptyMessageDelayed(MESSAGE_PREPARE_UPCOMING_ITEMS, LOOKAHEAD_DELAY_MS);
+    }
+
+
+    /**
+     * Builds the metadata of the items following the current one and prefetches their artwork,
+     * so the next track change finds everything it publishes already cached.
+     */
+    private void prepareUpcomingItems() {
+        final int currentIndex = getCurrentQueueIndex();
+        final int endIndex = Math.min(playbackQueueItems.size(), currentIndex + 1 + LOOKAHEAD_ITEM_COUNT);
+        final List<String> artworkUrls = new ArrayList<>(LOOKAHEAD_ITEM_COUNT);
+        for (int i = currentIndex + 1; i < endIndex; i++) {
+            final MetadataSnapshot snapshot = getMetadataSnapshot(playbackQueueItems.get(i));
+            snapshot.getMetadata();
+            if (snapshot.artworkUrl != null) {
+                artworkUrls.add(snapshot.artworkUrl);
+            }
+        }
+        artworkLoader.prefetch(artworkUrls);
+        Log.d(TAG, "prepareUpcomingItems() from: " + (currentIndex + 1) + " count: " + Math.max(0, endIndex - currentIndex - 1) + " artworkMisses: " + artworkMissCount);
+    }
+
+
+    int getArtworkMissCount() {
+        return artworkMissCount;
+    }
+
+
+    private void requestSkip(int offset) {
+        // Seeking within the track being skipped away from is pointless
+        backgroundHandler.removeMessages(MESSAGE_APPLY_SEEK);
+        pendingSeekPosition = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
+        resetScrub();
+        cancelPendingSearch();
+        final long now = SystemClock.uptimeMillis();
+        final boolean skipPending = backgroundHandler.hasMessages(MESSAGE_APPLY_SKIP);
+        final boolean burst = skipPending || now - lastSkipRequestTime < SKIP_COALESCE_MS;
+        lastSkipRequestTime = now;
+        if (!burst) {
+            // The first press of a burst goes through right away, only the ones after it wait
+            pendingSkipOffset = offset;
+            applySkip();
+            return;
+        }
+        if (skipPending) {
+            coalescedTransportCommandCount++;
+        } else {
+            skipBurstStartTime = now;
+        }
+        pendingSkipOffset += offset;
+        scheduleTransport(MESSAGE_APPLY_SKIP, skipBurstStartTime, SKIP_COALESCE_MS);
+    }
+
+
+    /**
+     * Applies the pending skips as a single transition. Single steps go through the player's own
+     * next and previous, which know about repeat modes and restarting the current track.
+     */
+    private void applySkip() {
+        int offset = pendingSkipOffset;
+        pendingSkipOffset = 0;
+        if (offset == 1) {
+            playerController.skipToNextItem();
+            return;
+        } else if (offset == -1) {
+            playerController.skipToPreviousItem();
+            return;
+        }
+        final int currentIndex = getCurrentQueueIndex();
+        if (currentIndex < 0 || playbackQueueItems.isEmpty()) {
+            if (offset > 0) {
+                playerController.skipToNextItem();
+            } else if (offset < 0) {
+                playerController.skipToPreviousItem();
+            }
+            return;
+        }
+        if (offset < 0 && playerController.getCurrentPosition() > PREVIOUS_RESTART_THRESHOLD_MS) {
+            // The first press only went back to the start of the current track
+            offset++;
+        }
+        final int targetIndex = Math.max(0, Math.min(playbackQueueItems.size() - 1, currentIndex + offset));
+        Log.d(TAG, "applySkip() offset: " + offset + " from: " + currentIndex + " to: " + targetIndex);
+        if (targetIndex == currentIndex) {
+            playerController.seekToPosition(0);
+        } else {
+            playerController.skipToQueueItemWithId(playbackQueueItems.get(targetIndex).getPlaybackQueueId());
+        }
+    }
+
+
+    private void requestSeek(long position) {
+        flushPendingSkip();
+        if (backgroundHandler.hasMessages(MESSAGE_APPLY_SEEK)) {
+            coalescedTransportCommandCount++;
+        } else {
+            seekBurstStartTime = SystemClock.uptimeMillis();
+        }
+        pendingSeekPosition = Math.max(0, position);
+        scheduleTransport(MESSAGE_APPLY_SEEK, seekBurstStartTime, SEEK_COALESCE_MS);
+    }
+
+
+    private void applySeek() {
+        final long position = pendingSeekPosition;
+        pendingSeekPosition = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
+        if (position != PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN) {
+            playerController.seekToPosition(position);
+        }
+    }
+
+
+    /**
+     * Moves the pending seek position by one scrub step. Steps start from wherever the previous
+     * step left off, even if that seek was not applied yet, so repeated presses add up.
+     */
+    private void requestScrub(int direction) {
+        flushPendingSkip();
+        final long now = SystemClock.uptimeMillis();
+        if (direction == scrubDirection && now - lastScrubTime < SCRUB_ACCELERATION_WINDOW_MS) {
+            scrubRepeatCount = Math.min(scrubRepeatCount + 1, SCRUB_MAX_ACCELERATION_SHIFT);
+        } else {
+            scrubRepeatCount = 0;
+        }
+        scrubDirection = direction;
+        lastScrubTime = now;
+        final long basePosition = pendingSeekPosition != PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN
+                ? pendingSeekPosition : playerController.getCurrentPosition();
+        long position = basePosition + direction * (SCRUB_STEP_MS << scrubRepeatCount);
+        final PlayerQueueItem currentItem = playerController.getCurrentItem();
+        final long duration = currentItem != null ? currentItem.getItem().getDuration() : -1;
+        if (duration > 0) {
+            // Stops short of the end, so fast forwarding does not turn into a skip
+            position = Math.min(position, duration - 1000);
+        }
+        requestSeek(position);
+    }
+
+
+    /**
+     * Applies the pending skips right away. Seeks are meant for the track those land on, so they
+     * must not overtake them.
+     */
+    private void flushPendingSkip() {
+        if (backgroundHandler.hasMessages(MESSAGE_APPLY_SKIP)) {
+            backgroundHandler.removeMessages(MESSAGE_APPLY_SKIP);
+            applySkip();
+        }
+    }
+
+
+    private void resetScrub() {
+        scrubDirection = 0;
+        scrubRepeatCount = 0;
+    }
+
+
+    /**
+     * Makes a search that was requested earlier but has not resolved yet leave the player alone.
+     */
+    private void cancelPendingSearch() {
+        searchRequestId++;
+    }
+
+
+    private void cancelPendingTransport() {
+        backgroundHandler.removeMessages(MESSAGE_APPLY_SKIP);
+        backgroundHandler.removeMessages(MESSAGE_APPLY_SEEK);
+        pendingSkipOffset = 0;
+        pendingSeekPosition = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
+        resetScrub();
+    }
+
+
+    /**
+     * Restarts the quiet period of what, unless the burst started at burstStartTime has already
+     * waited TRANSPORT_MAX_DELAY_MS.
+     */
+    private void scheduleTransport(int what, long burstStartTime, long coalesceMs) {
+        backgroundHandler.removeMessages(what);
+        final long deadline = burstStartTime + TRANSPORT_MAX_DELAY_MS;
+        backgroundHandler.sendEmptyMessageAtTime(what, Math.min(SystemClock.uptimeMillis() + coalesceMs, deadline));
+    }
+
+
+    private MetadataSnapshot getMetadataSnapshot(PlayerQueueItem currentItem) {
+        if (currentItem == null) {
+            return new MetadataSnapshot(null, null, null);
+        }
+        final MetadataSnapshot cachedSnapshot = metadataSnapshots.get(currentItem.getPlaybackQueueId());
+        final MetadataSnapshot snapshot = new MetadataSnapshot(currentItem.getItem(), currentItem.getItem().getArtworkUrl(artworkWidth, artworkHeight), cachedSnapshot);
+        // The cached snapshot may already have built its MediaMetadataCompat
+        if (snapshot.equals(cachedSnapshot)) {
+            return cachedSnapshot;
+        }
+        metadataSnapshots.put(currentItem.getPlaybackQueueId(), snapshot);
+        return snapshot;
+    }
+
+
+    private void publishQueue(boolean force) {
+        final int queueSize = playbackQueueItems.size();
+        final int windowOffset = getQueueWindowOffset(queueSize);
+        final int itemCount = Math.min(QUEUE_WINDOW_SIZE, queueSize - windowOffset);
+        if (!force && windowOffset == queueWindowOffset && hasSameQueueIds(windowOffset, itemCount)) {
+            Log.d(TAG, "publishQueue() queue unchanged, not republished");
+            updateQueueExtras(windowOffset, queueSize);
+            return;
+        }
+        final List<MediaSessionCompat.QueueItem> updatedItems = getQueueItems(windowOffset, itemCount);
+        if (queueItemCache.size() > itemCount) {
+            // Items left the queue or the window, drop them so the cache never outgrows what is published
+            queueItemCache.clear();
+            for (MediaSessionCompat.QueueItem sessionItem : updatedItems) {
+                queueItemCache.put(sessionItem.getQueueId(), sessionItem);
+            }
+        }
+        // The session may hold on to the published list, so it is replaced rather than modified
+        queueItems = updatedItems;
+        queueWindowOffset = windowOffset;
+        updateQueueExtras(windowOffset, queueSize);
+        mediaSession.setQueue(queueItems);
+    }
+
+
+    private List<MediaSessionCompat.QueueItem> getQueueItems(int offset, int itemCount) {
+        final List<MediaSessionCompat.QueueItem> result = new ArrayList<>(itemCount);
+        MediaDescriptionCompat.Builder builder = null;
+        int rebuiltCount = 0;
+        for (int i = offset; i < offset + itemCount; i++) {
+            final PlayerQueueItem queueItem = playbackQueueItems.get(i);
+            MediaSessionCompat.QueueItem sessionItem = queueItemCache.get(queueItem.getPlaybackQueueId());
+            if (sessionItem == null) {
+                if (builder == null) {
+                    builder = new MediaDescriptionCompat.Builder();
+                }
+                sessionItem = createQueueItem(builder, queueItem);
+                queueItemCache.put(queueItem.getPlaybackQueueId(), sessionItem);
+                rebuiltCount++;
+            }
+            result.add(sessionItem);
+        }
+        rebuiltQueueItemCount += rebuiltCount;
+        reusedQueueItemCount += itemCount - rebuiltCount;
+        Log.d(TAG, "getQueueItems() offset: " + offset + " rebuilt: " + rebuiltCount + " reused: " + (itemCount - rebuiltCount));
+        return result;
+    }
+
+
+    private int getQueueWindowOffset(int queueSize) {
+        final int maxOffset = Math.max(0, queueSize - QUEUE_WINDOW_SIZE);
+        final int offset = Math.min(queueWindowOffset, maxOffset);
+        final int currentIndex = getCurrentQueueIndex();
+        // The window stays put while the current item is in its first three quarters, so it only slides every few tracks
+        if (currentIndex >= offset && currentIndex < offset + QUEUE_WINDOW_SIZE * 3 / 4) {
+            return offset;
+        }
+        return Math.max(0, Math.min(currentIndex - QUEUE_WINDOW_SIZE / 5, maxOffset));
+    }
+
+
+    private int getCurrentQueueIndex() {
+        final PlayerQueueItem currentItem = playerController.getCurrentItem();
+        if (currentItem == null) {
+            return -1;
+        }
+        final long currentId = currentItem.getPlaybackQueueId();
+        for (int i = 0, itemCount = playbackQueueItems.size(); i < itemCount; i++) {
+            if (playbackQueueItems.get(i).getPlaybackQueueId() == currentId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private boolean hasSameQueueIds(int offset, int itemCount) {
+        if (itemCount != queueItems.size()) {
+            return false;
+        }
         for (int i = 0; i < itemCount; i++) {
+            if (playbackQueueItems.get(offset + i).getPlaybackQueueId() != queueItems.get(i).getQueueId()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void updateQueueExtras(int windowOffset, int queueSize) {
+        if (sessionExtras != null && sessionExtras.getInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_OFFSET) == windowOffset
+                && sessionExtras.getInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_SIZE) == queueSize) {
+            return;
+        }
+        sessionExtras = new Bundle(2);
+        sessionExtras.putInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_OFFSET, windowOffset);
+        sessionExtras.putInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_SIZE, queueSize);
+        mediaSession.setExtras(sessionExtras);
+    }
+
+
+    /**
+     * Applies operations in order and replies with a result per operation. Operations refer to
+     * the queue as left by the ones before them, so an item removed earlier in the batch can not
+     * be moved later on. The batch is mirrored on the queue ids it should leave behind, and the
+     * queue changes the player reports meanwhile are published as one once the queue matches.
+     */
+    private void editQueue(@Nullable List<Bundle> operations, @Nullable ResultReceiver cb) {
+        final int operationCount = operations != null ? operations.size() : 0;
+        final List<Long> queueIds;
+        final Set<Long> queueIdSet;
+        if (expectedQueueIds != null) {
+            // Continues from where the pending batch leaves the queue
+            queueIds = new ArrayList<>(expectedQueueIds);
+            queueIdSet = new HashSet<>(queueIds);
+        } else {
+            queueIds = new ArrayList<>(playbackQueueItems.size());
+            for (PlayerQueueItem queueItem : playbackQueueItems) {
+                queueIds.add(queueItem.getPlaybackQueueId());
+            }
+            queueIdSet = new HashSet<>(queueIds);
+        }
+        final Set<Long> startQueueIds = new HashSet<>(queueIdSet);
+        final int[] results = new int[operationCount];
+        int appliedCount = 0;
+        int addCount = 0;
+        for (int i = 0; i < operationCount; i++) {
+            final Bundle operation = operations.get(i);
+            operation.setClassLoader(getClass().getClassLoader());
+            results[i] = applyQueueOperation(operation, queueIds, queueIdSet);
+            if (results[i] == MediaControllerCommand.QUEUE_OPERATION_RESULT_OK) {
+                appliedCount++;
+                if (operation.getInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OPERATION_TYPE) == MediaControllerCommand.QUEUE_OPERATION_ADD) {
+                    addCount++;
+                }
+            }
+        }
+        if (appliedCount > 0) {
+            cancelPendingSearch();
+            if (expectedQueueIds == null) {
+                editedQueueIds = startQueueIds;
+                backgroundHandler.sendEmptyMessageDelayed(MESSAGE_PUBLISH_EDITED_QUEUE, QUEUE_EDIT_TIMEOUT_MS);
+            } else {
+                editedQueueIds.addAll(startQueueIds);
+            }
+            expectedQueueIds = queueIds;
+            pendingQueueAddCount += addCount;
+        }
+        Log.d(TAG, "editQueue() operations: " + operationCount + " applied: " + appliedCount);
+        if (cb != null) {
+            final Bundle resultData = new Bundle(1);
+            resultData.putIntArray(MediaControllerCommand.COMMAND_RESULT_QUEUE_OPERATION_RESULTS, results);
+            cb.send(0, resultData);
+        }
+    }
+
+
+    /**
+     * Submits an operation to the player and applies it to queueIds, the queue ids the batch
+     * so far leaves behind in order, with queueIdSet holding the same ids for lookups.
+     */
+    private int applyQueueOperation(Bundle operation, List<Long> queueIds, Set<Long> queueIdSet) {
+        switch (operation.getInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OPERATION_TYPE)) {
+            case MediaControllerCommand.QUEUE_OPERATION_REMOVE: {
+                final long itemId = operation.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID);
+                if (!queueIdSet.remove(itemId)) {
+                    return MediaControllerCommand.QUEUE_OPERATION_RESULT_UNKNOWN_ITEM;
+                }
+                queueIds.remove(Long.valueOf(itemId));
+                playerController.removeQueueItemWithId(itemId);
+                return MediaControllerCommand.QUEUE_OPERATION_RESULT_OK;
+            }
+            case MediaControllerCommand.QUEUE_OPERATION_MOVE: {
+                final long sourceItemId = operation.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID);
+                final long targetItemId = operation.getLong(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ID_TARGET);
+                if (!queueIdSet.contains(sourceItemId) || !queueIdSet.contains(targetItemId)) {
+                    return MediaControllerCommand.QUEUE_OPERATION_RESULT_UNKNOWN_ITEM;
+                }
+                if (sourceItemId == targetItemId) {
+                    return MediaControllerCommand.QUEUE_OPERATION_RESULT_INVALID;
+                }
+                final int moveTargetType = operation.getInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_MOVE_TARGET_TYPE);
+                playerController.moveQueueItemWithId(sourceItemId, targetItemId, moveTargetType);
+                queueIds.remove(Long.valueOf(sourceItemId));
+                final int targetIndex = queueIds.indexOf(targetItemId);
+                queueIds.add(moveTargetType == PlaybackQueueMoveTargetType.MOVE_AFTER_TARGET ? targetIndex + 1 : targetIndex, sourceItemId);
+                return MediaControllerCommand.QUEUE_OPERATION_RESULT_OK;
+            }
+            case MediaControllerCommand.QUEUE_OPERATION_ADD: {
+                final PlaybackQueueItemProvider provider = operation.getParcelable(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_ITEM_PROVIDER);
+                if (provider == null) {
+                    return MediaControllerCommand.QUEUE_OPERATION_RESULT_INVALID;
+                }
+                playerController.addQueueItems(provider, operation.getInt(MediaControllerCommand.COMMAND_ARGUMENT_PLAYBACK_QUEUE_INSERTION_TYPE));
+                return MediaControllerCommand.QUEUE_OPERATION_RESULT_OK;
+            }
+            default:
+                return MediaControllerCommand.QUEUE_OPERATION_RESULT_INVALID;
+        }
+    }
+
+
+    /**
+     * Whether the queue shows every pending batch edit applied: the items the edits started from
+     * are left exactly as expected, and the player reported each add. Items added meanwhile,
+     * by the edits or otherwise, are not compared.
+     */
+    private boolean isQueueEditApplied() {
+        if (pendingQueueAddCount > 0) {
+            return false;
+        }
+        int expectedIndex = 0;
+        for (PlayerQueueItem queueItem : playbackQueueItems) {
+            final long queueId = queueItem.getPlaybackQueueId();
+            if (!editedQueueIds.contains(queueId)) {
+                continue;
+            }
+            if (expectedIndex == expectedQueueIds.size() || expectedQueueIds.get(expectedIndex) != queueId) {
+                return false;
+            }
+            expectedIndex++;
+        }
+        return expectedIndex == expectedQueueIds.size();
+    }
+
+
+    private void finishQueueEdit() {
+        backgroundHandler.removeMessages(MESSAGE_PUBLISH_EDITED_QUEUE);
+        expectedQueueIds = null;
+        editedQueueIds = null;
+        pendingQueueAddCount = 0;
+    }
+
+
+    private void sendQueueItems(int offset, int count, ResultReceiver cb) {
+        if (cb == null) {
+            return;
+        }
+        final int queueSize = playbackQueueItems.size();
+        final int start = Math.max(0, Math.min(offset, queueSize));
+        // Ranges are capped like the published window
+        final int itemCount = Math.max(0, Math.min(Math.min(count, QUEUE_WINDOW_SIZE), queueSize - start));
+        final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder();
+        final ArrayList<MediaSessionCompat.QueueItem> items = new ArrayList<>(itemCount);
+        for (int i = start; i < start + itemCount; i++) {
             final PlayerQueueItem queueItem = playbackQueueItems.get(i);
-            final PlayerMediaItem item = queueItem.getItem();
-            builder.setTitle(item.getTitle());
-            builder.setSubtitle(item.getArtistName());
-            builder.setIconUri(Uri.parse(item.getArtworkUrl()));
-            builder.setMediaId(item.getSubscriptionStoreId());
-            queueItems.add(new MediaSessionCompat.QueueItem(builder.build(), queueItem.getPlaybackQueueId()));
+            final MediaSessionCompat.QueueItem sessionItem = queueItemCache.get(queueItem.getPlaybackQueueId());
+            // Not cached, the cache only follows the published window
+            items.add(sessionItem != null ? sessionItem : createQueueItem(builder, queueItem));
         }
-        mediaSession.setQueue(queueItems);
+        final Bundle result = new Bundle(3);
+        result.putInt(MediaControllerCommand.COMMAND_ARGUMENT_QUEUE_OFFSET, start);
+        result.putInt(MediaControllerCommand.SESSION_EXTRA_QUEUE_SIZE, queueSize);
+        result.putParcelableArrayList(MediaControllerCommand.COMMAND_RESULT_QUEUE_ITEMS, items);
+        cb.send(0, result);
     }
 
 
-    private boolean loadAlbumArtwork(PlayerQueueItem currentItem, PlayerQueueItem previousItem) {
-        String previousArtworkUrl = previousItem != null ? previousItem.getItem().getArtworkUrl(artworkWidth, artworkHeight) : null;
-        String currentArtworkUrl = currentItem != null ? currentItem.getItem().getArtworkUrl(artworkWidth, artworkHeight) : null;
+    private static MediaSessionCompat.QueueItem createQueueItem(MediaDescriptionCompat.Builder builder, PlayerQueueItem queueItem) {
+        final PlayerMediaItem item = queueItem.getItem();
+        final String artworkUrl = item.getArtworkUrl();
+        builder.setTitle(item.getTitle());
+        builder.setSubtitle(item.getArtistName());
+        builder.setIconUri(artworkUrl != null ? Uri.parse(artworkUrl) : null);
+        builder.setMediaId(item.getSubscriptionStoreId());
+        return new MediaSessionCompat.QueueItem(builder.build(), queueItem.getPlaybackQueueId());
+    }
+
+
+    private static boolean isQueueItemCurrent(MediaSessionCompat.QueueItem sessionItem, PlayerMediaItem item) {
+        final MediaDescriptionCompat description = sessionItem.getDescription();
+        return TextUtils.equals(description.getTitle(), item.getTitle())
+                && TextUtils.equals(description.getSubtitle(), item.getArtistName());
+    }
 
-        if (currentArtworkUrl != null && !currentArtworkUrl.equals(previousArtworkUrl)) {
-            mainHandler.obtainMessage(MESSAGE_LOAD_ARTWORK, currentArtworkUrl).sendToTarget();
-            return true;
+
+    /**
+     * Resolves query on a loader thread, so a library that is still importing never holds up
+     * transport controls, and prepares the results back on this thread. Results are dropped if
+     * anything changed what plays meanwhile. An empty query, e.g. a plain "play music", resumes
+     * the current queue, or prepares the first playable items of the catalog if there is none.
+     */
+    private void prepareFromSearch(final String query, final boolean playWhenReady) {
+        cancelPendingSearch();
+        final int requestId = searchRequestId;
+        final LocalMediaProvider.SearchListener listener = new LocalMediaProvider.SearchListener() {
+            @Override
+            public void onSearchFinished(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+                if (requestId != searchRequestId) {
+                    Log.d(TAG, "prepareFromSearch() superseded: " + query);
+                    return;
+                }
+                final PlaybackQueueItemProvider provider = createSearchQueueProvider(query, items);
+                if (provider != null) {
+                    playerController.prepare(provider, playWhenReady);
+                }
+            }
+        };
+        if (query != null && TextUtils.getTrimmedLength(query) > 0) {
+            mediaProvider.search(query, SEARCH_QUEUE_LIMIT, backgroundHandler, listener);
+        } else if (!playbackQueueItems.isEmpty()) {
+            if (playWhenReady) {
+                playerController.play();
+            }
+        } else {
+            mediaProvider.loadDefaultItems(SEARCH_QUEUE_LIMIT, backgroundHandler, listener);
         }
-        return false;
+    }
+
+
+    private PlaybackQueueItemProvider createSearchQueueProvider(String query, List<MediaBrowserCompat.MediaItem> results) {
+        MediaBrowserCompat.MediaItem topResult = null;
+        for (MediaBrowserCompat.MediaItem result : results) {
+            if (result.isPlayable()) {
+                topResult = result;
+                break;
+            }
+        }
+        if (topResult == null) {
+            Log.d(TAG, "createSearchQueueProvider() no playable results for: " + query);
+            return null;
+        }
+        final Bundle topExtras = topResult.getDescription().getExtras();
+        final int itemType = topExtras != null ? topExtras.getInt("itemType", MediaItemType.UNKNOWN) : MediaItemType.UNKNOWN;
+        if (itemType == MediaItemType.UNKNOWN) {
+            return createQueueProvider(topResult.getMediaId(), topExtras);
+        }
+        // Queue every matching item of the same type, starting with the best match
+        final List<String> itemIds = new ArrayList<>();
+        for (MediaBrowserCompat.MediaItem result : results) {
+            final Bundle extras = result.getDescription().getExtras();
+            if (result.isPlayable() && extras != null && extras.getInt("itemType", MediaItemType.UNKNOWN) == itemType) {
+                itemIds.add(result.getMediaId());
+            }
+        }
+        return new CatalogPlaybackQueueItemProvider.Builder().items(itemType, itemIds.toArray(new String[0])).build();
+    }
+
+
+    private static PlaybackQueueItemProvider createQueueProvider(String mediaId, Bundle extras) {
+        CatalogPlaybackQueueItemProvider.Builder builder = new CatalogPlaybackQueueItemProvider.Builder();
+        int containerType = MediaContainerType.NONE;
+        int itemType = MediaItemType.UNKNOWN;
+        if (extras != null) {
+            containerType = extras.getInt("containerType", MediaContainerType.NONE);
+            itemType = extras.getInt("itemType", MediaItemType.UNKNOWN);
+        }
+        if (containerType != MediaContainerType.NONE) {
+            builder.containers(containerType, mediaId);
+        } else {
+            builder.items(itemType, mediaId);
+        }
+        return builder.build();
     }
 
 
@@ -484,13 +1229,14 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
 
     private static long allowedActions(MediaPlayerController playerController) {
         // TODO: This will need to take into account queue state, etc as to whether skip is allowed
-        long result = PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS | PlaybackStateCompat.ACTION_SKIP_TO_NEXT;
+        long result = PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
+                | PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH | PlaybackStateCompat.ACTION_PREPARE_FROM_SEARCH;
         switch (playerController.getPlaybackState()) {
             case PlaybackState.PLAYING:
-                result |= PlaybackStateCompat.ACTION_PAUSE;
+                result |= PlaybackStateCompat.ACTION_PAUSE | SEEK_ACTIONS;
                 break;
             case PlaybackState.PAUSED:
-                result |= PlaybackStateCompat.ACTION_PLAY | PlaybackStateCompat.ACTION_STOP;
+                result |= PlaybackStateCompat.ACTION_PLAY | PlaybackStateCompat.ACTION_STOP | SEEK_ACTIONS;
                 break;
             case PlaybackState.STOPPED:
                 result |= PlaybackStateCompat.ACTION_PLAY;
@@ -508,47 +1254,113 @@ final class MediaSessionManager extends MediaSessionCompat.Callback implements M
     }
 
 
-    private class AlbumArtworkTarget implements Target {
+    private interface CommandHandler {
+        void onCommand(@NonNull Bundle extras, @Nullable ResultReceiver cb);
+    }
 
-        String url;
 
-        AlbumArtworkTarget(String url) {
-            this.url = url;
+    /**
+     * The metadata of one queue item as published to the session. The MediaMetadataCompat is
+     * only built when the snapshot is published, and the formatted release date is carried over
+     * from the previous snapshot of the item when the date did not change. Artwork is published
+     * as a content URI of ArtworkProvider once it is cached, never as a bitmap.
+     */
+    private static final class MetadataSnapshot {
+
+        final String title;
+        final String albumTitle;
+        final String artistName;
+        final String albumArtistName;
+        final long duration;
+        final long releaseTime;
+        final String releaseDate;
+        final String genreName;
+        final String composerName;
+        final String url;
+        final String artworkUrl;
+        final Uri artworkUri;
+        private MediaMetadataCompat metadata;
+
+        MetadataSnapshot(@Nullable PlayerMediaItem item, @Nullable String artworkUrl, @Nullable MetadataSnapshot previous) {
+            final Date date = item != null ? item.getReleaseDate() : null;
+            title = item != null ? item.getTitle() : null;
+            albumTitle = item != null ? item.getAlbumTitle() : null;
+            artistName = item != null ? item.getArtistName() : null;
+            albumArtistName = item != null ? item.getAlbumArtistName() : null;
+            duration = item != null ? item.getDuration() : -1;
+            releaseTime = date != null ? date.getTime() : Long.MIN_VALUE;
+            releaseDate = previous != null && previous.releaseTime == releaseTime ? previous.releaseDate : formatReleaseDate(date);
+            genreName = item != null ? item.getGenreName() : null;
+            composerName = item != null ? item.getComposerName() : null;
+            url = item != null ? item.getUrl() : null;
+            this.artworkUrl = artworkUrl;
+            artworkUri = null;
         }
 
-
-        @Override
-        public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom loadedFrom) {
-            backgroundHandler.obtainMessage(MESSAGE_UPDATE_ARTWORK, new Pair<>(url, bitmap)).sendToTarget();
+        private MetadataSnapshot(MetadataSnapshot snapshot, Uri artworkUri) {
+            title = snapshot.title;
+            albumTitle = snapshot.albumTitle;
+            artistName = snapshot.artistName;
+            albumArtistName = snapshot.albumArtistName;
+            duration = snapshot.duration;
+            releaseTime = snapshot.releaseTime;
+            releaseDate = snapshot.releaseDate;
+            genreName = snapshot.genreName;
+            composerName = snapshot.composerName;
+            url = snapshot.url;
+            artworkUrl = snapshot.artworkUrl;
+            this.artworkUri = artworkUri;
+            // Copies the built bundle instead of putting every key again
+            metadata = new MediaMetadataCompat.Builder(snapshot.getMetadata())
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, artworkUri.toString())
+                    .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, artworkUri.toString())
+                    .build();
         }
 
-
-        @Override
-        public void onBitmapFailed(Exception e, Drawable drawable) {
+        MetadataSnapshot withArtwork(@NonNull Uri artworkUri) {
+            return new MetadataSnapshot(this, artworkUri);
         }
 
-
-        @Override
-        public void onPrepareLoad(Drawable drawable) {
+        MediaMetadataCompat getMetadata() {
+            if (metadata == null) {
+                metadata = new MediaMetadataCompat.Builder()
+                        .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                        .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, albumTitle)
+                        .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artistName)
+                        .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ARTIST, albumArtistName)
+                        .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
+                        .putString(MediaMetadataCompat.METADATA_KEY_DATE, releaseDate)
+                        .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genreName)
+                        .putString(MediaMetadataCompat.METADATA_KEY_COMPOSER, composerName)
+                        .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI, url)
+                        // TODO: Add additional fields
+                        .build();
+            }
+            return metadata;
         }
 
-
+        /**
+         * Compares everything but the artwork content URI, which only follows from artworkUrl.
+         */
         @Override
         public boolean equals(Object obj) {
             if (this == obj) {
                 return true;
             }
-            if (!(obj instanceof AlbumArtworkTarget)) {
+            if (!(obj instanceof MetadataSnapshot)) {
                 return false;
             }
-            AlbumArtworkTarget other = (AlbumArtworkTarget)obj;
-            return url.equals(other.url);
+            final MetadataSnapshot other = (MetadataSnapshot) obj;
+            return duration == other.duration && releaseTime == other.releaseTime
+                    && TextUtils.equals(title, other.title) && TextUtils.equals(albumTitle, other.albumTitle)
+                    && TextUtils.equals(artistName, other.artistName) && TextUtils.equals(albumArtistName, other.albumArtistName)
+                    && TextUtils.equals(genreName, other.genreName) && TextUtils.equals(composerName, other.composerName)
+                    && TextUtils.equals(url, other.url) && TextUtils.equals(artworkUrl, other.artworkUrl);
         }
 
-
         @Override
         public int hashCode() {
-            return url.hashCode();
+            return title != null ? title.hashCode() : 0;
         }
 
     }
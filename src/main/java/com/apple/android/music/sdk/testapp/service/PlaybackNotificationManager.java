@@ -6,6 +6,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import androidx.annotation.NonNull;
@@ -31,14 +32,16 @@ final class PlaybackNotificationManager extends MediaControllerCompat.Callback {
 
     private final MediaPlaybackService service;
     private final Handler backgroundHandler;
+    private final ArtworkLoader artworkLoader;
     private final NotificationManagerCompat notificationManager;
     private MediaControllerCompat mediaController;
     private boolean postedNotification;
 
 
-    PlaybackNotificationManager(@NonNull MediaPlaybackService service, @NonNull Handler backgroundHandler) {
+    PlaybackNotificationManager(@NonNull MediaPlaybackService service, @NonNull Handler backgroundHandler, @NonNull ArtworkLoader artworkLoader) {
         this.service = service;
         this.backgroundHandler = backgroundHandler;
+        this.artworkLoader = artworkLoader;
         notificationManager = NotificationManagerCompat.from(service);
         notificationManager.cancel(NOTIFICATION_ID);
         createNotificationChannel();
@@ -153,7 +156,9 @@ final class PlaybackNotificationManager extends MediaControllerCompat.Callback {
             notificationBuilder.setContentTitle(mediaDescription.getTitle());
             notificationBuilder.setContentText(mediaDescription.getSubtitle());
             notificationBuilder.setSubText(mediaDescription.getDescription());
-            notificationBuilder.setLargeIcon(mediaDescription.getIconBitmap());
+            // The session only publishes a content URI, the thumbnail comes straight from the loader
+            final Uri artworkUri = mediaDescription.getIconUri();
+            notificationBuilder.setLargeIcon(artworkUri != null ? artworkLoader.getThumbnail(artworkUri) : null);
         }
 
         final long allowedActions = playbackState.getActions();
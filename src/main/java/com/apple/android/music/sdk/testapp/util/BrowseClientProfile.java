@@ -0,0 +1,154 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media.utils.MediaConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * What a browse client asked for in its root hints. Clients that sent no hints, such as our own
+ * UI, get the full payload. Each hint a client sends only changes what it is about: root lists
+ * capped or filtered to the supported flags, artwork URIs sized for the display, or with
+ * ROOT_HINT_COMPACT_ITEMS, items without the description and media URI.
+ */
+public final class BrowseClientProfile {
+
+    /**
+     * Root hint for clients that never show the description or play by media URI, such as car
+     * head units, so items are sent without them.
+     */
+    public static final String ROOT_HINT_COMPACT_ITEMS = "com.apple.android.music.sdk.testapp.COMPACT_ITEMS";
+
+    public static final BrowseClientProfile DEFAULT = new BrowseClientProfile(0, 0, 0, false);
+
+    // Artwork URIs end in <width>x<height><crop>.<extension>, e.g. 512x512bb.jpg
+    private static final Pattern ARTWORK_SIZE_PATTERN = Pattern.compile("/(\\d{1,5})x(\\d{1,5})([a-z]*)\\.(jpg|jpeg|png|webp)$");
+
+    private final int rootChildrenLimit;
+    private final int rootSupportedFlags;
+    private final int artworkSizePixels;
+    private final boolean compactItems;
+
+
+    private BrowseClientProfile(int rootChildrenLimit, int rootSupportedFlags, int artworkSizePixels, boolean compactItems) {
+        this.rootChildrenLimit = rootChildrenLimit;
+        this.rootSupportedFlags = rootSupportedFlags;
+        this.artworkSizePixels = artworkSizePixels;
+        this.compactItems = compactItems;
+    }
+
+
+    @NonNull
+    public static BrowseClientProfile fromRootHints(@Nullable Bundle rootHints) {
+        if (rootHints == null) {
+            return DEFAULT;
+        }
+        final int rootChildrenLimit = Math.max(0, rootHints.getInt(MediaConstants.BROWSER_ROOT_HINTS_KEY_ROOT_CHILDREN_LIMIT, 0));
+        final int rootSupportedFlags = rootHints.getInt(MediaConstants.BROWSER_ROOT_HINTS_KEY_ROOT_CHILDREN_SUPPORTED_FLAGS, 0);
+        final int artworkSizePixels = Math.max(0, rootHints.getInt(MediaConstants.BROWSER_ROOT_HINTS_KEY_MEDIA_ART_SIZE_PIXELS, 0));
+        final boolean compactItems = rootHints.getBoolean(ROOT_HINT_COMPACT_ITEMS, false);
+        if (rootChildrenLimit == 0 && rootSupportedFlags == 0 && artworkSizePixels == 0 && !compactItems) {
+            return DEFAULT;
+        }
+        return new BrowseClientProfile(rootChildrenLimit, rootSupportedFlags, artworkSizePixels, compactItems);
+    }
+
+
+    public boolean isConstrained() {
+        return this != DEFAULT;
+    }
+
+
+    @NonNull
+    public List<MediaBrowserCompat.MediaItem> apply(@NonNull List<MediaBrowserCompat.MediaItem> items, boolean root) {
+        return apply(items, root, 0);
+    }
+
+
+    /**
+     * Returns items, a page starting at offset within its parent, as they are sent to this client.
+     * The root children limit counts from the start of the parent, so later pages get what is
+     * left of it. Items that need no change are handed out as they are.
+     */
+    @NonNull
+    public List<MediaBrowserCompat.MediaItem> apply(@NonNull List<MediaBrowserCompat.MediaItem> items, boolean root, int offset) {
+        if (!isConstrained()) {
+            return items;
+        }
+        // Items the flags filter drops on earlier pages still count, so the cap is never exceeded
+        final int limit = root && rootChildrenLimit > 0 ? Math.max(0, rootChildrenLimit - offset) : Integer.MAX_VALUE;
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(Math.min(items.size(), limit));
+        for (MediaBrowserCompat.MediaItem item : items) {
+            if (result.size() == limit) {
+                break;
+            }
+            if (!root || rootSupportedFlags == 0 || (item.getFlags() & rootSupportedFlags) != 0) {
+                result.add(apply(item));
+            }
+        }
+        return result;
+    }
+
+
+    @Nullable
+    public MediaBrowserCompat.MediaItem apply(@Nullable MediaBrowserCompat.MediaItem item) {
+        if (item == null) {
+            return null;
+        }
+        final MediaDescriptionCompat description = item.getDescription();
+        final Uri iconUri = resizeArtwork(description.getIconUri());
+        if (!compactItems && iconUri == description.getIconUri()) {
+            return item;
+        }
+        final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder()
+                .setMediaId(description.getMediaId())
+                .setTitle(description.getTitle())
+                .setSubtitle(description.getSubtitle())
+                .setIconBitmap(description.getIconBitmap())
+                .setIconUri(iconUri)
+                .setExtras(description.getExtras());
+        if (!compactItems) {
+            builder.setDescription(description.getDescription())
+                    .setMediaUri(description.getMediaUri());
+        }
+        return new MediaBrowserCompat.MediaItem(builder.build(), item.getFlags());
+    }
+
+
+    @Override
+    public String toString() {
+        return "BrowseClientProfile[rootChildrenLimit=" + rootChildrenLimit + ", rootSupportedFlags=" + rootSupportedFlags
+                + ", artworkSizePixels=" + artworkSizePixels + ", compactItems=" + compactItems + "]";
+    }
+
+
+    private Uri resizeArtwork(Uri iconUri) {
+        if (iconUri == null || artworkSizePixels == 0) {
+            return iconUri;
+        }
+        final String path = iconUri.toString();
+        final Matcher matcher = ARTWORK_SIZE_PATTERN.matcher(path);
+        if (!matcher.find()) {
+            return iconUri;
+        }
+        final int width = Integer.parseInt(matcher.group(1));
+        final int height = Integer.parseInt(matcher.group(2));
+        // The artwork server scales on request, but never ask it for more than the original size
+        if (width <= artworkSizePixels && height <= artworkSizePixels) {
+            return iconUri;
+        }
+        final int size = artworkSizePixels;
+        return Uri.parse(path.substring(0, matcher.start()) + "/" + size + "x" + size + matcher.group(3) + "." + matcher.group(4));
+    }
+
+}
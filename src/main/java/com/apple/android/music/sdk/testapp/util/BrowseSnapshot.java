@@ -0,0 +1,203 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Keeps the first page of the last browse result for each parent on disk, so a browse screen
+ * can show something before the media browser has connected. Reads and writes run in order on
+ * a background thread, so a read always sees the last write.
+ */
+public final class BrowseSnapshot {
+
+    private static final String TAG = "BrowseSnapshot";
+    private static final String DIRECTORY = "browse_snapshots";
+    private static final String ROOT_KEY = "root";
+    private static final int VERSION = 1;
+    private static final int MAX_ITEMS = 50;
+    private static final String EXTRA_ITEM_TYPE = "itemType";
+    private static final String EXTRA_CONTAINER_TYPE = "containerType";
+    private static final Executor EXECUTOR = Executors.newSingleThreadExecutor();
+
+    public interface Listener {
+        void onSnapshotRead(@NonNull List<MediaBrowserCompat.MediaItem> items);
+    }
+
+
+    private BrowseSnapshot() {
+    }
+
+
+    /**
+     * Reads the snapshot for parentId, where null stands for the browse root, and hands it to
+     * listener on handler. The list is empty if there is none.
+     */
+    public static void read(@NonNull Context context, @Nullable final String parentId, @NonNull final Handler handler, @NonNull final Listener listener) {
+        final Context applicationContext = context.getApplicationContext();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Resolving the cache directory can touch the disk too
+                final List<MediaBrowserCompat.MediaItem> items = read(getFile(applicationContext, parentId));
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSnapshotRead(items);
+                    }
+                });
+            }
+        });
+    }
+
+
+    public static void write(@NonNull Context context, @Nullable String parentId, @NonNull List<MediaBrowserCompat.MediaItem> items) {
+        final File file = getFile(context, parentId);
+        final List<MediaBrowserCompat.MediaItem> snapshotItems = new ArrayList<>(items.subList(0, Math.min(items.size(), MAX_ITEMS)));
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(file, snapshotItems);
+            }
+        });
+    }
+
+
+    private static List<MediaBrowserCompat.MediaItem> read(File file) {
+        try {
+            final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (inputStream.readInt() != VERSION) {
+                    return Collections.emptyList();
+                }
+                final int count = inputStream.readInt();
+                final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    result.add(readItem(inputStream));
+                }
+                return result;
+            } finally {
+                inputStream.close();
+            }
+        } catch (FileNotFoundException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable snapshot " + file, e);
+            return Collections.emptyList();
+        }
+    }
+
+
+    private static void write(File file, List<MediaBrowserCompat.MediaItem> items) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            final File directory = file.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                outputStream.writeInt(VERSION);
+                outputStream.writeInt(items.size());
+                for (MediaBrowserCompat.MediaItem item : items) {
+                    writeItem(outputStream, item);
+                }
+            } finally {
+                outputStream.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write snapshot", e);
+            tempFile.delete();
+        }
+    }
+
+
+    private static File getFile(Context context, String parentId) {
+        final String key = parentId != null ? parentId : ROOT_KEY;
+        // Media ids can contain path separators, encoding leaves only characters that are safe in a file name
+        return new File(new File(context.getCacheDir(), DIRECTORY), Uri.encode(key));
+    }
+
+
+    private static MediaBrowserCompat.MediaItem readItem(DataInputStream inputStream) throws IOException {
+        final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder()
+                .setMediaId(readString(inputStream))
+                .setTitle(readString(inputStream))
+                .setSubtitle(readString(inputStream))
+                .setDescription(readString(inputStream));
+        final String iconUri = readString(inputStream);
+        final String mediaUri = readString(inputStream);
+        builder.setIconUri(iconUri != null ? Uri.parse(iconUri) : null);
+        builder.setMediaUri(mediaUri != null ? Uri.parse(mediaUri) : null);
+        final int flags = inputStream.readInt();
+        final int itemType = inputStream.readInt();
+        final int containerType = inputStream.readInt();
+        if (itemType != -1 || containerType != -1) {
+            final Bundle extras = new Bundle(1);
+            if (itemType != -1) {
+                extras.putInt(EXTRA_ITEM_TYPE, itemType);
+            }
+            if (containerType != -1) {
+                extras.putInt(EXTRA_CONTAINER_TYPE, containerType);
+            }
+            builder.setExtras(extras);
+        }
+        return new MediaBrowserCompat.MediaItem(builder.build(), flags);
+    }
+
+
+    private static void writeItem(DataOutputStream outputStream, MediaBrowserCompat.MediaItem item) throws IOException {
+        final MediaDescriptionCompat description = item.getDescription();
+        writeString(outputStream, description.getMediaId());
+        writeString(outputStream, description.getTitle());
+        writeString(outputStream, description.getSubtitle());
+        writeString(outputStream, description.getDescription());
+        writeString(outputStream, description.getIconUri());
+        writeString(outputStream, description.getMediaUri());
+        outputStream.writeInt(item.getFlags());
+        // Only the extras the browse screen uses to build a queue are kept
+        final Bundle extras = description.getExtras();
+        outputStream.writeInt(extras != null ? extras.getInt(EXTRA_ITEM_TYPE, -1) : -1);
+        outputStream.writeInt(extras != null ? extras.getInt(EXTRA_CONTAINER_TYPE, -1) : -1);
+    }
+
+
+    private static String readString(DataInputStream inputStream) throws IOException {
+        return inputStream.readBoolean() ? inputStream.readUTF() : null;
+    }
+
+
+    private static void writeString(DataOutputStream outputStream, Object value) throws IOException {
+        outputStream.writeBoolean(value != null);
+        if (value != null) {
+            outputStream.writeUTF(value.toString());
+        }
+    }
+
+}
@@ -0,0 +1,367 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.net.http.HttpResponseCache;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.apple.android.sdk.authentication.TokenProvider;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Looks up catalog metadata from the Apple Music API. Ids are fetched in batches of up to
+ * MAX_IDS_PER_REQUEST, and a caller asking for ids another thread is already fetching waits for
+ * that request instead of sending its own. Responses go through the platform HTTP response
+ * cache, which honors Cache-Control and revalidates with ETags.
+ */
+@WorkerThread
+final class CatalogApiClient {
+
+    private static final String TAG = "CatalogApiClient";
+    private static final String DEFAULT_BASE_URL = "https://api.music.apple.com/v1/catalog/";
+    private static final String DEFAULT_STOREFRONT = "us";
+    private static final int MAX_IDS_PER_REQUEST = 300;
+    private static final String CACHE_DIRECTORY = "catalog_http";
+    private static final long CACHE_MAX_BYTES = 10 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final int ARTWORK_SIZE = 512;
+    private static final String[] RESOURCE_TYPES = {null, "songs", "albums", "playlists"};
+
+    private final Context applicationContext;
+    private final TokenProvider tokenProvider;
+    private final CatalogStringPool stringPool;
+    private final String baseUrl;
+    private final String storefront;
+    // Ids being fetched right now, keyed by resource type and id
+    private final Map<String, Batch> inFlightBatches;
+    private boolean responseCacheInstalled;
+    private int requestCount;
+    private int coalescedCount;
+
+
+    CatalogApiClient(@NonNull Context context, @NonNull TokenProvider tokenProvider, @NonNull CatalogStringPool stringPool) {
+        this(context, tokenProvider, stringPool, DEFAULT_BASE_URL, DEFAULT_STOREFRONT);
+    }
+
+
+    CatalogApiClient(@NonNull Context context, @NonNull TokenProvider tokenProvider, @NonNull CatalogStringPool stringPool, @NonNull String baseUrl, @NonNull String storefront) {
+        applicationContext = context.getApplicationContext();
+        this.tokenProvider = tokenProvider;
+        this.stringPool = stringPool;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.storefront = storefront;
+        inFlightBatches = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Returns the items found for ids, keyed by id. Ids the catalog does not know are left out.
+     * Fails if any of the requests this lookup depends on failed.
+     */
+    @NonNull
+    Map<String, MediaBrowserCompat.MediaItem> lookup(int type, @NonNull Collection<String> ids) throws IOException {
+        if (type <= CatalogJsonParser.TYPE_NONE || type >= RESOURCE_TYPES.length) {
+            throw new IllegalArgumentException("Unknown type " + type);
+        }
+        final List<Batch> ownBatches = new ArrayList<>();
+        final LinkedHashSet<Batch> awaitedBatches = new LinkedHashSet<>();
+        Batch batch = null;
+        // Sorted so the same set of ids always maps to the same URL and cache entry
+        for (String id : new TreeSet<>(ids)) {
+            if (batch == null || batch.ids.size() == MAX_IDS_PER_REQUEST) {
+                batch = new Batch(type);
+                ownBatches.add(batch);
+            }
+            final Batch inFlightBatch = inFlightBatches.putIfAbsent(getKey(type, id), batch);
+            if (inFlightBatch != null) {
+                awaitedBatches.add(inFlightBatch);
+            } else {
+                batch.ids.add(id);
+            }
+        }
+        if (!awaitedBatches.isEmpty()) {
+            synchronized (this) {
+                coalescedCount++;
+            }
+        }
+        // Own batches all run first, even after one failed, so two lookups waiting on each other
+        // always make progress and no other lookup waits on a batch that never runs
+        int executedCount = 0;
+        try {
+            for (; executedCount < ownBatches.size(); executedCount++) {
+                if (!ownBatches.get(executedCount).ids.isEmpty()) {
+                    execute(ownBatches.get(executedCount));
+                }
+            }
+        } finally {
+            // Only left early if execute threw, it released its own batch but not the ones after it
+            for (int i = executedCount + 1; i < ownBatches.size(); i++) {
+                ownBatches.get(i).error = new IOException("Catalog lookup aborted");
+                release(ownBatches.get(i));
+            }
+        }
+        final Map<String, MediaBrowserCompat.MediaItem> result = new HashMap<>();
+        IOException error = null;
+        for (Batch ownBatch : ownBatches) {
+            if (ownBatch.ids.isEmpty()) {
+                continue;
+            }
+            if (ownBatch.error != null) {
+                error = error != null ? error : ownBatch.error;
+            } else {
+                result.putAll(ownBatch.items);
+            }
+        }
+        for (Batch awaitedBatch : awaitedBatches) {
+            try {
+                result.putAll(awaitedBatch.await());
+            } catch (IOException e) {
+                error = error != null ? error : e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        result.keySet().retainAll(ids);
+        return result;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "CatalogApiClient[requests=" + requestCount + ", coalesced=" + coalescedCount + "]";
+    }
+
+
+    private void execute(Batch batch) {
+        try {
+            batch.items = fetch(batch.type, batch.ids);
+        } catch (IOException e) {
+            batch.error = e;
+        } catch (IllegalStateException e) {
+            // JsonReader reports a response of the wrong shape this way
+            batch.error = new IOException("Unexpected catalog response", e);
+        } finally {
+            release(batch);
+        }
+    }
+
+
+    private void release(Batch batch) {
+        for (String id : batch.ids) {
+            inFlightBatches.remove(getKey(batch.type, id));
+        }
+        batch.latch.countDown();
+    }
+
+
+    private Map<String, MediaBrowserCompat.MediaItem> fetch(int type, List<String> ids) throws IOException {
+        final URL url = new URL(baseUrl + storefront + "/" + RESOURCE_TYPES[type] + "?ids=" + Uri.encode(TextUtils.join(",", ids), ","));
+        synchronized (this) {
+            if (!responseCacheInstalled) {
+                // Opening the cache reads its journal, so it waits for the first request on a worker thread
+                responseCacheInstalled = true;
+                installResponseCache(applicationContext);
+            }
+            requestCount++;
+        }
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setUseCaches(true);
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setRequestProperty("Authorization", "Bearer " + tokenProvider.getDeveloperToken());
+            final String userToken = tokenProvider.getUserToken();
+            if (!TextUtils.isEmpty(userToken)) {
+                connection.setRequestProperty("Music-User-Token", userToken);
+            }
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                // None of the ids exist in this storefront
+                return new HashMap<>();
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + responseCode + " for " + RESOURCE_TYPES[type] + " lookup of " + ids.size() + " ids");
+            }
+            final JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(connection.getInputStream()), StandardCharsets.UTF_8));
+            try {
+                return readResponse(reader, type, ids.size());
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+
+    private Map<String, MediaBrowserCompat.MediaItem> readResponse(JsonReader reader, int type, int expectedCount) throws IOException {
+        final Map<String, MediaBrowserCompat.MediaItem> result = new HashMap<>(expectedCount * 2);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"data".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                final MediaBrowserCompat.MediaItem item = readResource(reader, type);
+                if (item.getMediaId() != null) {
+                    result.put(item.getMediaId(), item);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return result;
+    }
+
+
+    private MediaBrowserCompat.MediaItem readResource(JsonReader reader, int type) throws IOException {
+        final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder()
+                .setExtras(CatalogJsonParser.getTypeExtras(type));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("id".equals(name)) {
+                builder.setMediaId(nextString(reader));
+            } else if ("attributes".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readAttributes(reader, builder);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new MediaBrowserCompat.MediaItem(builder.build(), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
+    }
+
+
+    private void readAttributes(JsonReader reader, MediaDescriptionCompat.Builder builder) throws IOException {
+        String artistName = null;
+        String curatorName = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("name".equals(name)) {
+                builder.setTitle(nextString(reader));
+            } else if ("artistName".equals(name)) {
+                artistName = nextString(reader);
+            } else if ("curatorName".equals(name)) {
+                curatorName = nextString(reader);
+            } else if ("albumName".equals(name)) {
+                builder.setDescription(stringPool.intern(nextString(reader)));
+            } else if ("artwork".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                builder.setIconUri(readArtworkUri(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        // Same field the bundled catalog uses for artists and curators
+        builder.setSubtitle(stringPool.intern(artistName != null ? artistName : curatorName));
+    }
+
+
+    private static Uri readArtworkUri(JsonReader reader) throws IOException {
+        String url = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("url".equals(reader.nextName())) {
+                url = nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (url == null) {
+            return null;
+        }
+        // Templated as {w}x{h}bb.jpg, resolved to the size the bundled catalog uses
+        final String size = Integer.toString(ARTWORK_SIZE);
+        return Uri.parse(url.replace("{w}", size).replace("{h}", size));
+    }
+
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+
+    private static String getKey(int type, String id) {
+        return type + ":" + id;
+    }
+
+
+    private static void installResponseCache(Context context) {
+        if (HttpResponseCache.getInstalled() != null) {
+            return;
+        }
+        try {
+            HttpResponseCache.install(new File(context.getCacheDir(), CACHE_DIRECTORY), CACHE_MAX_BYTES);
+        } catch (IOException e) {
+            Log.w(TAG, "HTTP response cache unavailable", e);
+        }
+    }
+
+
+    private static final class Batch {
+
+        private final int type;
+        private final List<String> ids;
+        private final CountDownLatch latch;
+        private volatile Map<String, MediaBrowserCompat.MediaItem> items;
+        private volatile IOException error;
+
+        Batch(int type) {
+            this.type = type;
+            ids = new ArrayList<>();
+            latch = new CountDownLatch(1);
+        }
+
+        Map<String, MediaBrowserCompat.MediaItem> await() throws IOException {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for catalog lookup", e);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return items;
+        }
+
+    }
+
+}
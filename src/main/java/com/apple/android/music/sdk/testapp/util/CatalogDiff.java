@@ -0,0 +1,77 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ */
+final class CatalogDiff {
+
+    private CatalogDiff() {
+    }
+
+
+    /**
+     * Returns next with every item that is unchanged since previous replaced by the previous
+     * instance, or previous itself when the two lists are identical.
+     */
+    @NonNull
+    static List<MediaBrowserCompat.MediaItem> merge(@NonNull List<MediaBrowserCompat.MediaItem> previous, @NonNull List<MediaBrowserCompat.MediaItem> next) {
+        final Map<String, MediaBrowserCompat.MediaItem> previousItems = new HashMap<>(previous.size() * 2);
+        for (MediaBrowserCompat.MediaItem item : previous) {
+            if (item.getMediaId() != null) {
+                previousItems.put(item.getMediaId(), item);
+            }
+        }
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(next.size());
+        boolean changed = previous.size() != next.size();
+        for (int i = 0; i < next.size(); i++) {
+            final MediaBrowserCompat.MediaItem item = next.get(i);
+            final MediaBrowserCompat.MediaItem previousItem = item.getMediaId() != null ? previousItems.get(item.getMediaId()) : null;
+            if (previousItem != null && isSameItem(previousItem, item)) {
+                result.add(previousItem);
+                // next may be longer than previous, e.g. after an insertion at the top
+                changed = changed || i >= previous.size() || previous.get(i) != previousItem;
+            } else {
+                result.add(item);
+                changed = true;
+            }
+        }
+        return changed ? result : previous;
+    }
+
+
+    private static boolean isSameItem(MediaBrowserCompat.MediaItem a, MediaBrowserCompat.MediaItem b) {
+        final MediaDescriptionCompat descriptionA = a.getDescription();
+        final MediaDescriptionCompat descriptionB = b.getDescription();
+        // Extras come from the shared per type bundles, so comparing them by reference is enough
+        return a.getFlags() == b.getFlags()
+                && equals(descriptionA.getMediaId(), descriptionB.getMediaId())
+                && equals(descriptionA.getTitle(), descriptionB.getTitle())
+                && equals(descriptionA.getSubtitle(), descriptionB.getSubtitle())
+                && equals(descriptionA.getDescription(), descriptionB.getDescription())
+                && equals(descriptionA.getMediaUri(), descriptionB.getMediaUri())
+                && equals(descriptionA.getIconUri(), descriptionB.getIconUri())
+                && descriptionA.getExtras() == descriptionB.getExtras();
+    }
+
+
+    private static boolean equals(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        // CharSequence implementations don't all define equals, so compare text content
+        if (a instanceof CharSequence && b instanceof CharSequence) {
+            return a.toString().equals(b.toString());
+        }
+        return a.equals(b);
+    }
+
+}
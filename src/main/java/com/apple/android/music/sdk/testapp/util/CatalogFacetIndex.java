@@ -0,0 +1,338 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.net.Uri;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Indexes over the item attributes of the whole catalog, where position i stands for the i-th
+ * distinct item in library order. Types and flags have few values and get a bitmap each.
+ * Subtitles are artist and curator names, so there can be thousands of them, and each keeps
+ * only the sorted positions of its items. A facet is a rule such as
+ * "type=playlist&subtitle=Apple%20Music%20Rock", and evaluating it is an AND over the matching
+ * bitmaps, so filtering never rescans the items themselves. The collections listed under the
+ * facet root are counted once, when the index is built.
+ */
+final class CatalogFacetIndex {
+
+    static final String FACET_PREFIX = "facet:";
+    static final String FACET_ROOT_ID = FACET_PREFIX;
+
+    private static final String KEY_TYPE = "type";
+    private static final String KEY_SUBTITLE = "subtitle";
+    private static final String KEY_FLAG = "flag";
+    private static final String[] TYPE_NAMES = {null, "song", "album", "playlist"};
+    private static final String[] FLAG_NAMES = {"browsable", "playable"};
+    private static final int[] FLAG_VALUES = {MediaBrowserCompat.MediaItem.FLAG_BROWSABLE, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE};
+
+    // Rule based collections listed first under the facet root
+    private static final String[][] SMART_COLLECTIONS = {
+            {"All Playlists", "type=playlist"},
+            {"All Albums", "type=album"},
+            {"All Songs", "type=song"},
+            {"Everything Playable", "flag=playable"},
+    };
+    // Per curator collections, generated for every subtitle that has items of the type
+    private static final int[] CURATOR_COLLECTION_TYPES = {CatalogJsonParser.TYPE_PLAYLIST, CatalogJsonParser.TYPE_ALBUM};
+    private static final String[] CURATOR_COLLECTION_TITLES = {null, "Songs by ", "Albums by ", "Playlists by "};
+    // Only the largest curator collections are listed, a catalog can have thousands of artists
+    private static final int MAX_CURATOR_COLLECTIONS = 50;
+    private static final int MIN_CURATOR_COLLECTION_SIZE = 2;
+
+    private final long[] rowIds;
+    private final long[][] typeBitmaps;
+    private final long[][] flagBitmaps;
+    // Sorted so the curator collections are listed alphabetically
+    private final TreeMap<String, int[]> subtitlePositions;
+    private final List<MediaBrowserCompat.MediaItem> collections;
+
+
+    private CatalogFacetIndex(long[] rowIds, long[][] typeBitmaps, long[][] flagBitmaps, TreeMap<String, int[]> subtitlePositions) {
+        this.rowIds = rowIds;
+        this.typeBitmaps = typeBitmaps;
+        this.flagBitmaps = flagBitmaps;
+        this.subtitlePositions = subtitlePositions;
+        collections = Collections.unmodifiableList(createCollections());
+    }
+
+
+    static boolean isFacetId(@Nullable String mediaId) {
+        return mediaId != null && mediaId.startsWith(FACET_PREFIX);
+    }
+
+
+    @NonNull
+    static MediaBrowserCompat.MediaItem createRootItem() {
+        return createNode(FACET_ROOT_ID, "Smart Collections", null);
+    }
+
+
+    int size() {
+        return rowIds.length;
+    }
+
+
+    /**
+     * Returns the bitmap of the items matching every term of rule, or null if rule is not valid.
+     */
+    @Nullable
+    long[] evaluate(@NonNull String rule) {
+        long[] result = null;
+        for (String term : rule.split("&")) {
+            final int separator = term.indexOf('=');
+            if (separator < 0) {
+                return null;
+            }
+            final long[] bitmap = getBitmap(term.substring(0, separator), Uri.decode(term.substring(separator + 1)));
+            if (bitmap == null) {
+                return null;
+            }
+            result = result == null ? bitmap.clone() : and(result, bitmap);
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the library row ids of up to limit set bits of bitmap, starting at the offset-th one.
+     */
+    @NonNull
+    long[] selectRowIds(@NonNull long[] bitmap, int offset, int limit) {
+        final long[] result = new long[(int) Math.max(0, Math.min(limit, (long) cardinality(bitmap) - offset))];
+        int skipped = 0;
+        int count = 0;
+        for (int word = 0; word < bitmap.length && count < result.length; word++) {
+            long bits = bitmap[word];
+            final int bitCount = Long.bitCount(bits);
+            // Whole words before the offset are skipped by their popcount alone
+            if (skipped + bitCount <= offset) {
+                skipped += bitCount;
+                continue;
+            }
+            while (bits != 0 && count < result.length) {
+                final int bit = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (skipped++ >= offset) {
+                    result[count++] = rowIds[word * 64 + bit];
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the browsable children of the facet root: the smart collections, then the largest
+     * collections per curator and type. Empty collections are left out.
+     */
+    @NonNull
+    List<MediaBrowserCompat.MediaItem> getCollections() {
+        return collections;
+    }
+
+
+    private List<MediaBrowserCompat.MediaItem> createCollections() {
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
+        for (String[] collection : SMART_COLLECTIONS) {
+            final long[] bitmap = evaluate(collection[1]);
+            addCollection(result, collection[0], collection[1], bitmap != null ? cardinality(bitmap) : 0);
+        }
+        // Candidates in alphabetical order, each as {subtitle index, type, count}
+        final List<int[]> candidates = new ArrayList<>();
+        final List<String> subtitles = new ArrayList<>(subtitlePositions.keySet());
+        for (int i = 0; i < subtitles.size(); i++) {
+            final int[] positions = subtitlePositions.get(subtitles.get(i));
+            for (int type : CURATOR_COLLECTION_TYPES) {
+                int count = 0;
+                for (int position : positions) {
+                    if ((typeBitmaps[type][position >>> 6] & (1L << (position & 63))) != 0) {
+                        count++;
+                    }
+                }
+                if (count >= MIN_CURATOR_COLLECTION_SIZE) {
+                    candidates.add(new int[] {i, type, count});
+                }
+            }
+        }
+        if (candidates.size() > MAX_CURATOR_COLLECTIONS) {
+            final List<int[]> largest = new ArrayList<>(candidates);
+            Collections.sort(largest, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return Integer.compare(b[2], a[2]);
+                }
+            });
+            candidates.retainAll(new HashSet<>(largest.subList(0, MAX_CURATOR_COLLECTIONS)));
+        }
+        for (int[] candidate : candidates) {
+            final String subtitle = subtitles.get(candidate[0]);
+            addCollection(result, CURATOR_COLLECTION_TITLES[candidate[1]] + subtitle,
+                    KEY_TYPE + "=" + TYPE_NAMES[candidate[1]] + "&" + KEY_SUBTITLE + "=" + Uri.encode(subtitle), candidate[2]);
+        }
+        return result;
+    }
+
+
+    private static void addCollection(List<MediaBrowserCompat.MediaItem> collections, String title, String rule, int count) {
+        if (count > 0) {
+            collections.add(createNode(FACET_PREFIX + rule, title, count == 1 ? "1 item" : count + " items"));
+        }
+    }
+
+
+    @Nullable
+    private long[] getBitmap(String key, String value) {
+        if (KEY_TYPE.equals(key)) {
+            final int type = Arrays.asList(TYPE_NAMES).indexOf(value);
+            return type > 0 ? typeBitmaps[type] : null;
+        } else if (KEY_FLAG.equals(key)) {
+            final int flag = Arrays.asList(FLAG_NAMES).indexOf(value);
+            return flag >= 0 ? flagBitmaps[flag] : null;
+        } else if (KEY_SUBTITLE.equals(key)) {
+            // Expanded to a bitmap only for the duration of one evaluation
+            final long[] bitmap = new long[wordCount(rowIds.length)];
+            final int[] positions = subtitlePositions.get(value);
+            if (positions != null) {
+                for (int position : positions) {
+                    bitmap[position >>> 6] |= 1L << (position & 63);
+                }
+            }
+            return bitmap;
+        }
+        return null;
+    }
+
+
+    private static MediaBrowserCompat.MediaItem createNode(String mediaId, String title, String subtitle) {
+        final MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .build();
+        return new MediaBrowserCompat.MediaItem(description, MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
+    }
+
+
+    private static long[] and(long[] target, long[] other) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] &= other[i];
+        }
+        return target;
+    }
+
+
+    private static int cardinality(long[] bitmap) {
+        int result = 0;
+        for (long word : bitmap) {
+            result += Long.bitCount(word);
+        }
+        return result;
+    }
+
+
+    private static int wordCount(int bitCount) {
+        return (bitCount + 63) >>> 6;
+    }
+
+
+    static final class Builder {
+
+        private final Set<String> mediaIds = new HashSet<>();
+        private final Map<String, Integer> subtitleIds = new HashMap<>();
+        private final List<String> subtitles = new ArrayList<>();
+        private long[] rowIds = new long[256];
+        private int[] types = new int[256];
+        private int[] flags = new int[256];
+        private int[] subtitleIndexes = new int[256];
+        private int size;
+
+        /**
+         * Rows have to be added in library order. Items listed under several parents are only
+         * indexed the first time.
+         */
+        void add(long rowId, @NonNull String mediaId, @Nullable String subtitle, int itemFlags, int type) {
+            if (!mediaIds.add(mediaId)) {
+                return;
+            }
+            if (size == rowIds.length) {
+                rowIds = Arrays.copyOf(rowIds, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+                flags = Arrays.copyOf(flags, size * 2);
+                subtitleIndexes = Arrays.copyOf(subtitleIndexes, size * 2);
+            }
+            int subtitleIndex = -1;
+            if (subtitle != null) {
+                final Integer existingIndex = subtitleIds.get(subtitle);
+                if (existingIndex != null) {
+                    subtitleIndex = existingIndex;
+                } else {
+                    subtitleIndex = subtitles.size();
+                    subtitleIds.put(subtitle, subtitleIndex);
+                    subtitles.add(subtitle);
+                }
+            }
+            rowIds[size] = rowId;
+            types[size] = type;
+            flags[size] = itemFlags;
+            subtitleIndexes[size] = subtitleIndex;
+            size++;
+        }
+
+        @NonNull
+        CatalogFacetIndex build() {
+            final int words = wordCount(size);
+            final long[][] typeBitmaps = new long[TYPE_NAMES.length][words];
+            final long[][] flagBitmaps = new long[FLAG_VALUES.length][words];
+            final int[] subtitleCounts = new int[subtitles.size()];
+            for (int i = 0; i < size; i++) {
+                if (subtitleIndexes[i] >= 0) {
+                    subtitleCounts[subtitleIndexes[i]]++;
+                }
+            }
+            final int[][] subtitlePositionsById = new int[subtitles.size()][];
+            for (int i = 0; i < subtitlePositionsById.length; i++) {
+                subtitlePositionsById[i] = new int[subtitleCounts[i]];
+                subtitleCounts[i] = 0;
+            }
+            for (int i = 0; i < size; i++) {
+                final long bit = 1L << (i & 63);
+                final int word = i >>> 6;
+                if (types[i] > 0 && types[i] < TYPE_NAMES.length) {
+                    typeBitmaps[types[i]][word] |= bit;
+                }
+                for (int flag = 0; flag < FLAG_VALUES.length; flag++) {
+                    if ((flags[i] & FLAG_VALUES[flag]) != 0) {
+                        flagBitmaps[flag][word] |= bit;
+                    }
+                }
+                final int subtitleIndex = subtitleIndexes[i];
+                if (subtitleIndex >= 0) {
+                    // Filled in position order, so every array ends up sorted
+                    subtitlePositionsById[subtitleIndex][subtitleCounts[subtitleIndex]++] = i;
+                }
+            }
+            final TreeMap<String, int[]> subtitlePositions = new TreeMap<>();
+            for (int i = 0; i < subtitles.size(); i++) {
+                subtitlePositions.put(subtitles.get(i), subtitlePositionsById[i]);
+            }
+            return new CatalogFacetIndex(Arrays.copyOf(rowIds, size), typeBitmaps, flagBitmaps, subtitlePositions);
+        }
+
+    }
+
+}
@@ -0,0 +1,462 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.apple.android.music.playback.model.MediaContainerType;
+import com.apple.android.music.playback.model.MediaItemType;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Streaming parser for the media_data JSON schema. It works on UTF-8 bytes directly, matches
+ * field names against pre-encoded keys without creating Strings, and hands out one shared
+ * extras Bundle per item type instead of a new Bundle per item.
+ */
+final class CatalogJsonParser implements Closeable {
+
+    static final int TYPE_NONE = 0;
+    static final int TYPE_SONG = 1;
+    static final int TYPE_ALBUM = 2;
+    static final int TYPE_PLAYLIST = 3;
+
+    // Shared by every item of a type and never modified. Clients only ever get parceled copies,
+    // the media browser service writes every item to the client's binder.
+    private static final Bundle SONG_EXTRAS = createExtras("itemType", MediaItemType.SONG);
+    private static final Bundle ALBUM_EXTRAS = createExtras("containerType", MediaContainerType.ALBUM);
+    private static final Bundle PLAYLIST_EXTRAS = createExtras("containerType", MediaContainerType.PLAYLIST);
+
+    private static final byte[] FIELD_ID = ascii("id");
+    private static final byte[] FIELD_TITLE = ascii("title");
+    private static final byte[] FIELD_SUBTITLE = ascii("subtitle");
+    private static final byte[] FIELD_DESCRIPTION = ascii("description");
+    private static final byte[] FIELD_BROWSEABLE = ascii("browseable");
+    private static final byte[] FIELD_PLAYABLE = ascii("playable");
+    private static final byte[] FIELD_MEDIA_URI = ascii("mediaUri");
+    private static final byte[] FIELD_ICON_URI = ascii("iconUri");
+    private static final byte[] FIELD_TYPE = ascii("type");
+    private static final byte[] VALUE_SONG = ascii("song");
+    private static final byte[] VALUE_ALBUM = ascii("album");
+    private static final byte[] VALUE_PLAYLIST = ascii("playlist");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    interface ItemHandler {
+        void onItem(@NonNull MediaBrowserCompat.MediaItem item) throws IOException;
+    }
+
+    private final InputStream inputStream;
+    private final CatalogStringPool stringPool;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private byte[] name;
+    private int nameLength;
+    private char[] chars;
+    private int charCount;
+
+
+    CatalogJsonParser(@NonNull InputStream inputStream, @NonNull CatalogStringPool stringPool) {
+        this.inputStream = inputStream;
+        this.stringPool = stringPool;
+        buffer = new byte[BUFFER_SIZE];
+        name = new byte[32];
+        chars = new char[128];
+    }
+
+
+    @Nullable
+    static Bundle getTypeExtras(int type) {
+        switch (type) {
+            case TYPE_SONG:
+                return SONG_EXTRAS;
+            case TYPE_ALBUM:
+                return ALBUM_EXTRAS;
+            case TYPE_PLAYLIST:
+                return PLAYLIST_EXTRAS;
+            default:
+                return null;
+        }
+    }
+
+
+    static int getType(@Nullable Bundle extras) {
+        if (extras == SONG_EXTRAS) {
+            return TYPE_SONG;
+        } else if (extras == ALBUM_EXTRAS) {
+            return TYPE_ALBUM;
+        } else if (extras == PLAYLIST_EXTRAS) {
+            return TYPE_PLAYLIST;
+        }
+        return TYPE_NONE;
+    }
+
+
+    /**
+     * Reads up to limit items of the top level array, starting at offset. Items before offset are
+     * skipped without being decoded, and nothing after the last returned item is read.
+     */
+    @NonNull
+    List<MediaBrowserCompat.MediaItem> readItems(int offset, int limit) throws IOException {
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(Math.min(limit, 64));
+        readItems(offset, limit, new ItemHandler() {
+            @Override
+            public void onItem(@NonNull MediaBrowserCompat.MediaItem item) {
+                result.add(item);
+            }
+        });
+        return result;
+    }
+
+
+    /**
+     * Same as readItems, but hands each item to handler as soon as it is decoded instead of
+     * collecting them. Returns the number of items handled.
+     */
+    int readItems(int offset, int limit, @NonNull ItemHandler handler) throws IOException {
+        final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder();
+        expect('[');
+        int index = 0;
+        int count = 0;
+        while (count < limit && hasNextElement(']', index)) {
+            if (index++ < offset) {
+                skipValue();
+            } else {
+                handler.onItem(readItem(builder));
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+
+    private MediaBrowserCompat.MediaItem readItem(MediaDescriptionCompat.Builder builder) throws IOException {
+        int flags = 0;
+        int type = TYPE_NONE;
+        builder.setMediaId(null).setTitle(null).setSubtitle(null).setDescription(null)
+                .setMediaUri(null).setIconUri(null).setExtras(null);
+        expect('{');
+        int fieldCount = 0;
+        while (hasNextElement('}', fieldCount++)) {
+            readName();
+            expect(':');
+            if (nameEquals(FIELD_ID)) {
+                builder.setMediaId(readString(false));
+            } else if (nameEquals(FIELD_TITLE)) {
+                builder.setTitle(readString(false));
+            } else if (nameEquals(FIELD_SUBTITLE)) {
+                builder.setSubtitle(readString(true));
+            } else if (nameEquals(FIELD_DESCRIPTION)) {
+                builder.setDescription(readString(true));
+            } else if (nameEquals(FIELD_BROWSEABLE)) {
+                if (readBoolean()) {
+                    flags |= MediaBrowserCompat.MediaItem.FLAG_BROWSABLE;
+                }
+            } else if (nameEquals(FIELD_PLAYABLE)) {
+                if (readBoolean()) {
+                    flags |= MediaBrowserCompat.MediaItem.FLAG_PLAYABLE;
+                }
+            } else if (nameEquals(FIELD_MEDIA_URI)) {
+                builder.setMediaUri(parseUri(readString(false)));
+            } else if (nameEquals(FIELD_ICON_URI)) {
+                builder.setIconUri(parseUri(readString(false)));
+            } else if (nameEquals(FIELD_TYPE)) {
+                type = readType();
+            } else {
+                skipValue();
+            }
+        }
+        builder.setExtras(getTypeExtras(type));
+        return new MediaBrowserCompat.MediaItem(builder.build(), flags);
+    }
+
+
+    private int readType() throws IOException {
+        if (peekToken() == 'n') {
+            expectLiteral("null");
+            return TYPE_NONE;
+        }
+        // Decode into the name buffer so the common values never become Strings
+        readName();
+        if (nameEquals(VALUE_SONG)) {
+            return TYPE_SONG;
+        } else if (nameEquals(VALUE_ALBUM)) {
+            return TYPE_ALBUM;
+        } else if (nameEquals(VALUE_PLAYLIST)) {
+            return TYPE_PLAYLIST;
+        }
+        return TYPE_NONE;
+    }
+
+
+    private boolean hasNextElement(char closing, int index) throws IOException {
+        final int c = peekToken();
+        if (c == closing) {
+            position++;
+            return false;
+        }
+        if (index > 0) {
+            expect(',');
+        }
+        return true;
+    }
+
+
+    private void readName() throws IOException {
+        expect('"');
+        nameLength = 0;
+        while (true) {
+            final int c = nextByte();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                // Escapes never occur in schema names, so any escaped name simply won't match
+                nextByte();
+            }
+            if (nameLength == name.length) {
+                name = Arrays.copyOf(name, nameLength * 2);
+            }
+            name[nameLength++] = (byte) c;
+        }
+    }
+
+
+    private boolean nameEquals(byte[] expected) {
+        if (nameLength != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (name[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private String readString(boolean pooled) throws IOException {
+        if (peekToken() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        expect('"');
+        charCount = 0;
+        while (true) {
+            final int c = nextByte();
+            if (c == '"') {
+                return pooled ? stringPool.intern(chars, 0, charCount) : new String(chars, 0, charCount);
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c < 0x80) {
+                appendChar((char) c);
+            } else if ((c & 0xE0) == 0xC0) {
+                appendChar((char) (((c & 0x1F) << 6) | continuation()));
+            } else if ((c & 0xF0) == 0xE0) {
+                appendChar((char) (((c & 0x0F) << 12) | (continuation() << 6) | continuation()));
+            } else if ((c & 0xF8) == 0xF0) {
+                final int codePoint = ((c & 0x07) << 18) | (continuation() << 12) | (continuation() << 6) | continuation();
+                appendChar(Character.highSurrogate(codePoint));
+                appendChar(Character.lowSurrogate(codePoint));
+            } else {
+                throw new IOException("Malformed UTF-8 at " + position);
+            }
+        }
+    }
+
+
+    private void readEscape() throws IOException {
+        final int c = nextByte();
+        switch (c) {
+            case 'b':
+                appendChar('\b');
+                break;
+            case 'f':
+                appendChar('\f');
+                break;
+            case 'n':
+                appendChar('\n');
+                break;
+            case 'r':
+                appendChar('\r');
+                break;
+            case 't':
+                appendChar('\t');
+                break;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int digit = Character.digit(nextByte(), 16);
+                    if (digit < 0) {
+                        throw new IOException("Malformed unicode escape at " + position);
+                    }
+                    value = (value << 4) | digit;
+                }
+                appendChar((char) value);
+                break;
+            default:
+                appendChar((char) c);
+                break;
+        }
+    }
+
+
+    private int continuation() throws IOException {
+        final int c = nextByte();
+        if ((c & 0xC0) != 0x80) {
+            throw new IOException("Malformed UTF-8 at " + position);
+        }
+        return c & 0x3F;
+    }
+
+
+    private void appendChar(char c) {
+        if (charCount == chars.length) {
+            chars = Arrays.copyOf(chars, charCount * 2);
+        }
+        chars[charCount++] = c;
+    }
+
+
+    private boolean readBoolean() throws IOException {
+        if (peekToken() == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        expectLiteral("false");
+        return false;
+    }
+
+
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            final int c = peekToken();
+            position++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == '"') {
+                skipString();
+            } else if (c != ',' && c != ':') {
+                skipScalar();
+            }
+        } while (depth > 0);
+    }
+
+
+    private void skipString() throws IOException {
+        while (true) {
+            final int c = nextByte();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                nextByte();
+            }
+        }
+    }
+
+
+    private void skipScalar() throws IOException {
+        while (fill()) {
+            final int c = buffer[position];
+            if (c == ',' || c == '}' || c == ']' || c <= ' ') {
+                return;
+            }
+            position++;
+        }
+    }
+
+
+    private void expectLiteral(String literal) throws IOException {
+        peekToken();
+        for (int i = 0; i < literal.length(); i++) {
+            if (nextByte() != literal.charAt(i)) {
+                throw new IOException("Expected " + literal + " at " + position);
+            }
+        }
+    }
+
+
+    private void expect(char expected) throws IOException {
+        final int c = peekToken();
+        if (c != expected) {
+            throw new IOException("Expected '" + expected + "' but was '" + (char) c + "' at " + position);
+        }
+        position++;
+    }
+
+
+    private int peekToken() throws IOException {
+        while (true) {
+            if (!fill()) {
+                throw new EOFException();
+            }
+            final int c = buffer[position];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            position++;
+        }
+    }
+
+
+    private int nextByte() throws IOException {
+        if (!fill()) {
+            throw new EOFException();
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        limit = inputStream.read(buffer, 0, buffer.length);
+        position = 0;
+        return limit > 0;
+    }
+
+
+    private static Uri parseUri(String value) {
+        // Uri.parse only wraps the string, the URI itself is parsed when it is first read
+        return value != null ? Uri.parse(value) : null;
+    }
+
+
+    private static byte[] ascii(String value) {
+        final byte[] result = new byte[value.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) value.charAt(i);
+        }
+        return result;
+    }
+
+
+    private static Bundle createExtras(String key, int value) {
+        final Bundle extras = new Bundle(1);
+        extras.putInt(key, value);
+        return extras;
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * Interns the catalog strings that repeat across many items, such as curator and artist names,
+ * so every cached item holding one shares a single instance. The pool stops growing at
+ * MAX_ENTRIES and never evicts, so from then on for the life of the process only the strings
+ * pooled so far are shared and all others are returned as they are.
+ *
+ * Most lookups come from imports and pages that are dropped right after, so savedBytes only
+ * counts the pooled strings of the items that are cached now, past the first reference to each.
+ */
+final class CatalogStringPool {
+
+    // Entries are never evicted, cached items may still share them and an evicted string could
+    // not be pooled again without losing that. The catalog has far fewer distinct short strings.
+    private static final int MAX_ENTRIES = 8192;
+    // Long values are almost always unique, interning them would only fill the pool
+    private static final int MAX_LENGTH = 128;
+
+    // Open addressing, kept at most half full so probe runs stay short
+    private final String[] table;
+    private final int mask;
+    private int size;
+    private int hitCount;
+    private int missCount;
+
+
+    CatalogStringPool() {
+        table = new String[Integer.highestOneBit(MAX_ENTRIES) * 2];
+        mask = table.length - 1;
+    }
+
+
+    @Nullable
+    synchronized String intern(@Nullable String value) {
+        if (value == null || value.length() > MAX_LENGTH) {
+            return value;
+        }
+        int index = mix(value.hashCode()) & mask;
+        String candidate;
+        while ((candidate = table[index]) != null) {
+            if (candidate.equals(value)) {
+                return onHit(candidate);
+            }
+            index = (index + 1) & mask;
+        }
+        return onMiss(index, value);
+    }
+
+
+    /**
+     * Same as intern(String), except a String is only created when the value is not pooled yet.
+     */
+    @NonNull
+    synchronized String intern(@NonNull char[] chars, int offset, int length) {
+        if (length > MAX_LENGTH) {
+            return new String(chars, offset, length);
+        }
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int index = mix(hash) & mask;
+        String candidate;
+        while ((candidate = table[index]) != null) {
+            if (candidate.hashCode() == hash && regionEquals(candidate, chars, offset, length)) {
+                return onHit(candidate);
+            }
+            index = (index + 1) & mask;
+        }
+        return onMiss(index, new String(chars, offset, length));
+    }
+
+
+    /**
+     * Estimates the bytes the pool saves across the given cached parents, evaluated from their
+     * current contents so parents that were evicted or replaced meanwhile no longer count.
+     */
+    synchronized long savedBytes(@NonNull List<List<MediaBrowserCompat.MediaItem>> cachedParents) {
+        final int[] counts = new int[table.length];
+        long result = 0;
+        for (List<MediaBrowserCompat.MediaItem> items : cachedParents) {
+            for (MediaBrowserCompat.MediaItem item : items) {
+                final MediaDescriptionCompat description = item.getDescription();
+                result += countReference(description.getSubtitle(), counts);
+                result += countReference(description.getDescription(), counts);
+            }
+        }
+        return result;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "CatalogStringPool[entries=" + size + ", hits=" + hitCount + ", misses=" + missCount + "]";
+    }
+
+
+    private String onHit(String value) {
+        hitCount++;
+        return value;
+    }
+
+
+    /**
+     * Returns the bytes one more reference to value saves, nothing for its first reference.
+     */
+    private long countReference(@Nullable CharSequence value, int[] counts) {
+        if (!(value instanceof String) || value.length() > MAX_LENGTH) {
+            return 0;
+        }
+        int index = mix(value.hashCode()) & mask;
+        String candidate;
+        while ((candidate = table[index]) != null) {
+            // Only the pooled instance itself counts, an equal copy saved nothing
+            if (candidate == value) {
+                return counts[index]++ > 0 ? MediaItemCache.estimateSize(candidate) : 0;
+            }
+            index = (index + 1) & mask;
+        }
+        return 0;
+    }
+
+
+    private String onMiss(int index, String value) {
+        missCount++;
+        if (size < MAX_ENTRIES) {
+            table[index] = value;
+            size++;
+        }
+        return value;
+    }
+
+
+    private static boolean regionEquals(String value, char[] chars, int offset, int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static int mix(int hash) {
+        // Fold the high bits in, the mask only looks at the low ones
+        return hash ^ (hash >>> 16);
+    }
+
+}
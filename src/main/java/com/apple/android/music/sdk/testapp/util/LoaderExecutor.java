@@ -0,0 +1,167 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ */
+final class LoaderExecutor {
+
+    static final int PRIORITY_REQUEST = 0;
+    static final int PRIORITY_PREFETCH = 1;
+
+    private static final String[] STAGE_NAMES = {"request", "prefetch"};
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String tag;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence;
+    private final StageStats[] stageStats;
+
+
+    LoaderExecutor(@NonNull final String name, int threadCount) {
+        tag = name;
+        sequence = new AtomicLong();
+        stageStats = new StageStats[STAGE_NAMES.length];
+        for (int i = 0; i < stageStats.length; i++) {
+            stageStats[i] = new StageStats();
+        }
+        // An unbounded queue keeps the pool at threadCount, so core and max size are the same
+        executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name + ":Loader-" + threadNumber.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    void execute(@NonNull Task task, int priority) {
+        task.owner = this;
+        task.priority = priority;
+        task.sequence = sequence.getAndIncrement();
+        task.enqueuedAt = SystemClock.elapsedRealtimeNanos();
+        executor.execute(task);
+    }
+
+
+    boolean remove(@NonNull Task task) {
+        return executor.remove(task);
+    }
+
+
+    void promote(@NonNull Task task, int priority) {
+        if (task.priority <= priority) {
+            return;
+        }
+        // The queue orders on priority, so a queued task has to leave the queue before it changes
+        if (executor.remove(task)) {
+            task.priority = priority;
+            executor.execute(task);
+        } else {
+            task.priority = priority;
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder(tag).append("[active=").append(executor.getActiveCount())
+                .append(", queued=").append(executor.getQueue().size());
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            result.append(", ").append(STAGE_NAMES[i]).append('=').append(stageStats[i]);
+        }
+        return result.append(']').toString();
+    }
+
+
+    abstract static class Task implements Runnable, Comparable<Task> {
+
+        private LoaderExecutor owner;
+        private volatile int priority;
+        private long sequence;
+        private long enqueuedAt;
+
+        abstract void runTask();
+
+        final int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public final void run() {
+            final long startedAt = SystemClock.elapsedRealtimeNanos();
+            try {
+                runTask();
+            } finally {
+                final long waitNanos = startedAt - enqueuedAt;
+                final long executionNanos = SystemClock.elapsedRealtimeNanos() - startedAt;
+                final int stage = priority;
+                owner.stageStats[stage].record(waitNanos, executionNanos);
+                Log.d(owner.tag, STAGE_NAMES[stage] + " " + this + " wait: " + TimeUnit.NANOSECONDS.toMicros(waitNanos)
+                        + "us exec: " + TimeUnit.NANOSECONDS.toMicros(executionNanos) + "us");
+            }
+        }
+
+        @Override
+        public final int compareTo(@NonNull Task other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+    }
+
+
+    private static final class StageStats {
+
+        private int count;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long totalExecutionNanos;
+        private long maxExecutionNanos;
+
+        synchronized void record(long waitNanos, long executionNanos) {
+            count++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            totalExecutionNanos += executionNanos;
+            maxExecutionNanos = Math.max(maxExecutionNanos, executionNanos);
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (count == 0) {
+                return "{}";
+            }
+            return "{count=" + count
+                    + ", avgWaitUs=" + TimeUnit.NANOSECONDS.toMicros(totalWaitNanos / count)
+                    + ", maxWaitUs=" + TimeUnit.NANOSECONDS.toMicros(maxWaitNanos)
+                    + ", avgExecUs=" + TimeUnit.NANOSECONDS.toMicros(totalExecutionNanos / count)
+                    + ", maxExecUs=" + TimeUnit.NANOSECONDS.toMicros(maxExecutionNanos) + "}";
+        }
+
+    }
+
+}
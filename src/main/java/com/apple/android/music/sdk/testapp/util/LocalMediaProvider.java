@@ -1,28 +1,50 @@
 package com.apple.android.music.sdk.testapp.util;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.FileObserver;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.media.MediaBrowserServiceCompat;
 
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
-import android.util.JsonReader;
+import android.util.Log;
+import android.util.SparseArray;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import com.apple.android.music.playback.model.MediaContainerType;
-import com.apple.android.music.playback.model.MediaItemType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Copyright (C) 2017 Apple, Inc. All rights reserved.
@@ -32,134 +54,1318 @@ public final class LocalMediaProvider {
 
     public static final String MEDIA_ROOT_ID = "MEDIA_ROOT";
 
+    private static final String TAG = "LocalMediaProvider";
+    private static final int CACHE_MAX_ENTRIES = 64;
+    private static final long CACHE_MAX_BYTES = 2 * 1024 * 1024;
+    // Larger parents are never held whole, clients that don't page only get their first items
+    private static final int MAX_UNPAGED_ITEMS = 1000;
+
+    private static final int PREFETCH_MAX_DEPTH = 2;
+    private static final int PREFETCH_MAX_CHILDREN = 8;
+    private static final float PREFETCH_MAX_CACHE_FILL = 0.75f;
+
+    private static final int LOADER_THREAD_COUNT = 3;
+    private static final int LOOKUP_THREAD_COUNT = 2;
+    private static final int SEARCH_RESULT_LIMIT = 50;
+    private static final String CATALOG_DIRECTORY = "media_data";
+    private static final String ROOT_CATALOG_KEY = "root";
+    private static final long CATALOG_RELOAD_DELAY_MS = 250;
+    private static final int IMPORT_BATCH_SIZE = 500;
+    private static final int IMPORT_UNCHANGED = 0;
+    private static final int IMPORT_UPDATED = 1;
+    private static final int IMPORT_REMOVED = 2;
+
+    public interface Listener {
+        void onChildrenChanged(@NonNull String parentId);
+    }
+
+    public interface SearchListener {
+        void onSearchFinished(@NonNull List<MediaBrowserCompat.MediaItem> items);
+    }
+
+    private interface HydrationListener {
+        void onItemsHydrated(@NonNull List<MediaBrowserCompat.MediaItem> items);
+    }
+
     private final Context applicationContext;
-    private final ExecutorService executorService;
+    private final Listener listener;
+    private final LoaderExecutor loaderExecutor;
+    // Catalog API lookups block on the network, so they never run on the loader threads
+    private final LoaderExecutor lookupExecutor;
     private final Handler mainHandler;
+    private final MediaItemCache cache;
+    private final AtomicInteger pendingRequestCount;
+    private final Map<String, DataLoader> inFlightLoads;
+    private int coalescedRequestCount;
+    // Searches, and item lookups the compiled catalog could not answer, that arrived before the library import finished
+    private final List<LoaderExecutor.Task> pendingLibraryTasks;
+    private final CatalogStringPool stringPool;
+    private final MediaLibraryStore libraryStore;
+    private final CatalogApiClient catalogClient;
+    // Type and id of the entries the catalog API answered without, see getLookupKey
+    private final Set<String> unknownCatalogIds;
+    private final Object importLock;
+    private final CountDownLatch libraryReadyLatch;
+    private MappedCatalog mappedCatalog;
+    private boolean mappedCatalogOpened;
+    // Catalog files in app storage replace the bundled ones with the same name
+    private final File catalogOverrideDirectory;
+    private final CatalogWatcher catalogWatcher;
+    private final AtomicInteger catalogGeneration;
+    // Only touched on the main thread
+    private final Map<String, String> loadedParentIds;
+    private final Map<String, Runnable> pendingReloads;
+    // Rebuilt after every import, null until the first one finished
+    private volatile CatalogFacetIndex facetIndex;
 
-    public LocalMediaProvider(Context context) {
+    public LocalMediaProvider(Context context, @NonNull Listener listener) {
         applicationContext = context.getApplicationContext();
-        executorService = Executors.newSingleThreadExecutor();
+        this.listener = listener;
+        loaderExecutor = new LoaderExecutor(TAG, Math.min(LOADER_THREAD_COUNT, Runtime.getRuntime().availableProcessors()));
+        lookupExecutor = new LoaderExecutor(TAG + ":Lookup", LOOKUP_THREAD_COUNT);
         mainHandler = new Handler(Looper.getMainLooper());
+        cache = new MediaItemCache(CACHE_MAX_ENTRIES, CACHE_MAX_BYTES);
+        pendingRequestCount = new AtomicInteger();
+        inFlightLoads = new HashMap<>();
+        pendingLibraryTasks = new ArrayList<>();
+        stringPool = new CatalogStringPool();
+        libraryStore = new MediaLibraryStore(applicationContext, stringPool);
+        catalogClient = new CatalogApiClient(applicationContext, new AppleMusicTokenProvider(applicationContext), stringPool);
+        unknownCatalogIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        importLock = new Object();
+        libraryReadyLatch = new CountDownLatch(1);
+        catalogOverrideDirectory = new File(applicationContext.getFilesDir(), CATALOG_DIRECTORY);
+        catalogGeneration = new AtomicInteger();
+        loadedParentIds = new HashMap<>();
+        pendingReloads = new HashMap<>();
+        if (!catalogOverrideDirectory.isDirectory() && !catalogOverrideDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + catalogOverrideDirectory);
+        }
+        catalogWatcher = new CatalogWatcher(this, catalogOverrideDirectory);
+        catalogWatcher.startWatching();
+        loaderExecutor.execute(new CatalogImporter(this), LoaderExecutor.PRIORITY_PREFETCH);
+    }
+
+
+    public void release() {
+        catalogWatcher.stopWatching();
+        for (Runnable reload : pendingReloads.values()) {
+            mainHandler.removeCallbacks(reload);
+        }
+        pendingReloads.clear();
     }
 
-    public void loadMediaItems(@NonNull String parentId, @NonNull MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result) {
+
+    public void loadMediaItems(@NonNull String parentId, @NonNull MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result, @NonNull BrowseClientProfile profile) {
+        final List<MediaBrowserCompat.MediaItem> cachedItems = cache.get(parentId);
+        if (cachedItems != null) {
+            result.sendResult(profile.apply(cachedItems, MEDIA_ROOT_ID.equals(parentId)));
+            schedulePrefetch(cachedItems, 1);
+            return;
+        }
         result.detach();
-        executorService.execute(new DataLoader(applicationContext, parentId, result, mainHandler));
+        requestLoad(parentId, 0, Integer.MAX_VALUE, new PendingResult(result, profile, MEDIA_ROOT_ID.equals(parentId)));
     }
 
 
+    public void loadMediaItems(@NonNull String parentId, @NonNull MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result, @Nullable Bundle options, @NonNull BrowseClientProfile profile) {
+        final int page = options != null ? options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1) : -1;
+        final int pageSize = options != null ? options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1) : -1;
+        if (page < 0 || pageSize < 1) {
+            loadMediaItems(parentId, result, profile);
+            return;
+        }
+        final long offset = (long) page * pageSize;
+        if (offset >= Integer.MAX_VALUE) {
+            result.sendResult(Collections.<MediaBrowserCompat.MediaItem>emptyList());
+            return;
+        }
+        final List<MediaBrowserCompat.MediaItem> cachedItems = cache.get(parentId);
+        if (cachedItems != null) {
+            final List<MediaBrowserCompat.MediaItem> pageItems = subList(cachedItems, (int) offset, pageSize);
+            result.sendResult(profile.apply(pageItems, MEDIA_ROOT_ID.equals(parentId), (int) offset));
+            schedulePrefetch(pageItems, 1);
+            return;
+        }
+        result.detach();
+        requestLoad(parentId, (int) offset, pageSize, new PendingResult(result, profile, MEDIA_ROOT_ID.equals(parentId), (int) offset));
+    }
+
 
+    public void search(@NonNull String query, @NonNull MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result, @NonNull BrowseClientProfile profile) {
+        result.detach();
+        final PendingResult pendingResult = new PendingResult(result, profile, false);
+        executeLibraryTask(new SearchTask(this, query, SEARCH_RESULT_LIMIT, mainHandler, new SearchListener() {
+            @Override
+            public void onSearchFinished(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+                pendingResult.send(items);
+            }
+        }));
+    }
 
-    private static class DataLoader implements Runnable {
 
-        private final Context applicationContext;
-        private final String fileName;
-        private final MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result;
-        private final Handler mainHandler;
+    /**
+     * Searches the catalog on a loader thread once the library import finished, and hands up to
+     * limit results to listener on handler. Callable from any thread.
+     */
+    public void search(@NonNull String query, int limit, @NonNull Handler handler, @NonNull SearchListener listener) {
+        executeLibraryTaskLater(new SearchTask(this, query, limit, handler, listener));
+    }
 
-        DataLoader(Context applicationContext, String parentId, MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result, Handler mainHandler) {
-            this.applicationContext = applicationContext;
-            this.fileName = getFileName(parentId);
-            this.result = result;
-            this.mainHandler = mainHandler;
+
+    /**
+     * Same as search, except it hands the first limit playable items of the catalog to listener.
+     */
+    public void loadDefaultItems(int limit, @NonNull Handler handler, @NonNull SearchListener listener) {
+        executeLibraryTaskLater(new SearchTask(this, null, limit, handler, listener));
+    }
+
+
+    public void loadMediaItem(@Nullable String mediaId, @NonNull MediaBrowserServiceCompat.Result<MediaBrowserCompat.MediaItem> result, @NonNull BrowseClientProfile profile) {
+        if (mediaId == null) {
+            result.sendResult(null);
+            return;
         }
+        result.detach();
+        // Not a library task, it answers from the compiled catalog while the import still runs
+        loaderExecutor.execute(new ItemLoader(this, mediaId, result, profile), LoaderExecutor.PRIORITY_REQUEST);
+    }
 
-        @Override
-        public void run() {
+
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cancelPrefetches();
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cancelPrefetches();
+            cache.trimToSize(cache.maxBytes() / 2);
+        }
+        Log.d(TAG, "onTrimMemory() level: " + level + " " + cache + " " + stringPool);
+    }
+
+
+    public int getCacheHitCount() {
+        return cache.hitCount();
+    }
+
+
+    public int getCacheMissCount() {
+        return cache.missCount();
+    }
+
+
+    public int getCoalescedRequestCount() {
+        return coalescedRequestCount;
+    }
+
+
+    public long getInternedBytesSaved() {
+        return stringPool.savedBytes(cache.values());
+    }
+
+
+    @NonNull
+    public String getLoaderStatistics() {
+        return loaderExecutor + " " + lookupExecutor;
+    }
+
+
+    private void requestLoad(String parentId, int offset, int limit, PendingResult result) {
+        final String loadKey = DataLoader.getLoadKey(parentId, offset, limit);
+        final DataLoader inFlightLoader = inFlightLoads.get(loadKey);
+        if (inFlightLoader != null) {
+            if (inFlightLoader.results.isEmpty()) {
+                // A prefetch of this parent is already queued or running, so wait for it instead
+                pendingRequestCount.incrementAndGet();
+                loaderExecutor.promote(inFlightLoader, LoaderExecutor.PRIORITY_REQUEST);
+            }
+            inFlightLoader.results.add(result);
+            coalescedRequestCount++;
+            return;
+        }
+        cancelPrefetches();
+        final DataLoader loader = new DataLoader(this, loadKey, parentId, offset, limit, 0);
+        loadedParentIds.put(loader.catalogKey, parentId);
+        loader.results.add(result);
+        inFlightLoads.put(loadKey, loader);
+        pendingRequestCount.incrementAndGet();
+        loaderExecutor.execute(loader, LoaderExecutor.PRIORITY_REQUEST);
+    }
+
+
+    private void onLoadFinished(DataLoader loader, List<MediaBrowserCompat.MediaItem> items) {
+        inFlightLoads.remove(loader.loadKey);
+        if (!loader.results.isEmpty()) {
+            pendingRequestCount.decrementAndGet();
+            for (PendingResult result : loader.results) {
+                result.send(items);
+            }
+        }
+        schedulePrefetch(items, loader.depth + 1);
+    }
+
+
+    private void onCatalogFileChanged(final String catalogKey) {
+        if (pendingReloads.containsKey(catalogKey)) {
+            return;
+        }
+        // Writers usually touch a file more than once, so wait for them to settle before reading it
+        final Runnable reload = new Runnable() {
+            @Override
+            public void run() {
+                pendingReloads.remove(catalogKey);
+                final String parentId = loadedParentIds.get(catalogKey);
+                if (parentId != null) {
+                    loaderExecutor.execute(new CatalogReloader(LocalMediaProvider.this, catalogKey, parentId), LoaderExecutor.PRIORITY_REQUEST);
+                } else {
+                    // Nobody has loaded this parent yet, so it only has to be imported again
+                    loaderExecutor.execute(new CatalogReloader(LocalMediaProvider.this, catalogKey, null), LoaderExecutor.PRIORITY_PREFETCH);
+                }
+            }
+        };
+        pendingReloads.put(catalogKey, reload);
+        mainHandler.postDelayed(reload, CATALOG_RELOAD_DELAY_MS);
+    }
+
+
+    private void onCatalogReloaded(String parentId, boolean changed) {
+        Log.d(TAG, "onCatalogReloaded() parentId: " + parentId + " changed: " + changed);
+        if (changed) {
+            listener.onChildrenChanged(parentId);
+        }
+    }
+
+
+    private void onFacetIndexChanged() {
+        for (String parentId : loadedParentIds.values()) {
+            if (CatalogFacetIndex.isFacetId(parentId)) {
+                listener.onChildrenChanged(parentId);
+            }
+        }
+    }
+
+
+    private void executeLibraryTaskLater(final LoaderExecutor.Task task) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                executeLibraryTask(task);
+            }
+        });
+    }
+
+
+    private void executeLibraryTask(LoaderExecutor.Task task) {
+        if (libraryReadyLatch.getCount() > 0) {
+            pendingLibraryTasks.add(task);
+            return;
+        }
+        loaderExecutor.execute(task, LoaderExecutor.PRIORITY_REQUEST);
+    }
+
+
+    private void onLibraryReady() {
+        for (LoaderExecutor.Task task : pendingLibraryTasks) {
+            loaderExecutor.execute(task, LoaderExecutor.PRIORITY_REQUEST);
+        }
+        pendingLibraryTasks.clear();
+    }
+
+
+    private void schedulePrefetch(List<MediaBrowserCompat.MediaItem> items, int depth) {
+        if (depth > PREFETCH_MAX_DEPTH || pendingRequestCount.get() > 0) {
+            return;
+        }
+        int scheduledCount = 0;
+        for (MediaBrowserCompat.MediaItem item : items) {
+            if (scheduledCount == PREFETCH_MAX_CHILDREN || !hasPrefetchBudget()) {
+                break;
+            }
+            final String mediaId = item.getMediaId();
+            // Facets are evaluated on demand and never cached, so prefetching them gains nothing
+            if (!item.isBrowsable() || mediaId == null || cache.contains(mediaId) || CatalogFacetIndex.isFacetId(mediaId)) {
+                continue;
+            }
+            final String loadKey = DataLoader.getLoadKey(mediaId, 0, Integer.MAX_VALUE);
+            if (!inFlightLoads.containsKey(loadKey)) {
+                final DataLoader loader = new DataLoader(this, loadKey, mediaId, 0, Integer.MAX_VALUE, depth);
+                loadedParentIds.put(loader.catalogKey, mediaId);
+                inFlightLoads.put(loadKey, loader);
+                loaderExecutor.execute(loader, LoaderExecutor.PRIORITY_PREFETCH);
+            }
+            scheduledCount++;
+        }
+    }
+
+
+    private void cancelPrefetches() {
+        final Iterator<DataLoader> iterator = inFlightLoads.values().iterator();
+        while (iterator.hasNext()) {
+            final DataLoader loader = iterator.next();
+            // Prefetches that already started are left to finish, they only hold one parse
+            if (loader.results.isEmpty() && loaderExecutor.remove(loader)) {
+                iterator.remove();
+            }
+        }
+    }
+
+
+    private boolean hasPrefetchBudget() {
+        return cache.sizeBytes() < cache.maxBytes() * PREFETCH_MAX_CACHE_FILL;
+    }
+
+
+    private synchronized MappedCatalog getMappedCatalog() {
+        if (!mappedCatalogOpened) {
+            mappedCatalogOpened = true;
             try {
-                final List<MediaBrowserCompat.MediaItem> items = readItemsFromFile(applicationContext, fileName);
-                mainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        result.sendResult(items);
+                mappedCatalog = MappedCatalog.open(applicationContext, stringPool);
+            } catch (IOException e) {
+                Log.w(TAG, "Compiled catalog unavailable, falling back to JSON assets", e);
+            }
+        }
+        return mappedCatalog;
+    }
+
+
+    @WorkerThread
+    private List<MediaBrowserCompat.MediaItem> searchLibrary(String query, int limit) {
+        try {
+            return libraryStore.search(query, limit);
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not search media library", e);
+            return Collections.emptyList();
+        }
+    }
+
+
+    private List<MediaBrowserCompat.MediaItem> readDefaultItems(int limit) {
+        try {
+            return libraryStore.readPlayableItems(limit);
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not read media library", e);
+            return Collections.emptyList();
+        }
+    }
+
+
+    @WorkerThread
+    private void importCatalogs() throws IOException {
+        synchronized (importLock) {
+            libraryStore.load();
+            final Set<String> catalogKeys = getSourceCatalogKeys();
+            for (String catalogKey : catalogKeys) {
+                importCatalog(catalogKey);
+            }
+            for (String catalogKey : new ArrayList<>(libraryStore.getCatalogKeys())) {
+                if (!catalogKeys.contains(catalogKey)) {
+                    libraryStore.remove(catalogKey);
+                    catalogGeneration.incrementAndGet();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Imports one parent into the library store unless the imported copy already came from the
+     * current source file, or removes it when it has no source left, e.g. a deleted override
+     * file without a bundled counterpart. Returns one of the IMPORT_ constants.
+     */
+    @WorkerThread
+    private int importCatalog(String catalogKey) throws IOException {
+        synchronized (importLock) {
+            libraryStore.load();
+            final File overrideFile = new File(catalogOverrideDirectory, DataLoader.getFileName(catalogKey));
+            final boolean overridden = overrideFile.isFile();
+            final MappedCatalog catalog = getMappedCatalog();
+            if (!overridden && !hasBundledCatalog(catalog, catalogKey)) {
+                if (libraryStore.getSourceStamp(catalogKey) == null) {
+                    return IMPORT_UNCHANGED;
+                }
+                libraryStore.remove(catalogKey);
+                catalogGeneration.incrementAndGet();
+                return IMPORT_REMOVED;
+            }
+            final String sourceStamp = overridden
+                    ? "file:" + overrideFile.lastModified() + ":" + overrideFile.length()
+                    : "apk:" + getPackageUpdateTime(applicationContext);
+            if (sourceStamp.equals(libraryStore.getSourceStamp(catalogKey))) {
+                return IMPORT_UNCHANGED;
+            }
+            final MediaLibraryStore.Importer importer = libraryStore.beginImport(catalogKey);
+            try {
+                if (overridden) {
+                    DataLoader.readItemsFromStream(new FileInputStream(overrideFile), stringPool, importer);
+                } else if (catalog != null && catalog.getCatalogKeys().contains(catalogKey)) {
+                    // Copied in batches so the whole parent is never materialized at once
+                    List<MediaBrowserCompat.MediaItem> batch;
+                    int offset = 0;
+                    do {
+                        batch = catalog.readItems(catalogKey, offset, IMPORT_BATCH_SIZE);
+                        for (MediaBrowserCompat.MediaItem item : batch) {
+                            importer.onItem(item);
+                        }
+                        offset += batch.size();
+                    } while (batch.size() == IMPORT_BATCH_SIZE);
+                } else {
+                    DataLoader.readItemsFromStream(applicationContext.getAssets().open(DataLoader.getAssetName(catalogKey)), stringPool, importer);
+                }
+            } catch (IOException | RuntimeException e) {
+                importer.abort();
+                throw e;
+            }
+            importer.commit(sourceStamp);
+            // Only bumped once the new rows are visible, so a load that read the old ones is never cached
+            catalogGeneration.incrementAndGet();
+            return IMPORT_UPDATED;
+        }
+    }
+
+
+    @WorkerThread
+    private void rebuildFacetIndex() {
+        final long startedAt = SystemClock.elapsedRealtime();
+        final CatalogFacetIndex.Builder builder = new CatalogFacetIndex.Builder();
+        libraryStore.scanAttributes(builder);
+        final CatalogFacetIndex index = builder.build();
+        facetIndex = index;
+        Log.d(TAG, "Indexed " + index.size() + " items for facets in " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onFacetIndexChanged();
+            }
+        });
+    }
+
+
+    /**
+     * Evaluates a facet on the attribute index and reads only the page of matching items from
+     * the library store.
+     */
+    @WorkerThread
+    private List<MediaBrowserCompat.MediaItem> readFacetItems(String parentId, int offset, int limit) {
+        final CatalogFacetIndex index = facetIndex;
+        if (index == null) {
+            // Subscribers are notified once the index is built
+            return Collections.emptyList();
+        }
+        if (CatalogFacetIndex.FACET_ROOT_ID.equals(parentId)) {
+            return new ArrayList<>(subList(index.getCollections(), offset, limit));
+        }
+        final long[] bitmap = index.evaluate(parentId.substring(CatalogFacetIndex.FACET_PREFIX.length()));
+        if (bitmap == null) {
+            Log.w(TAG, "Invalid facet " + parentId);
+            return Collections.emptyList();
+        }
+        try {
+            return libraryStore.readItemsByRowId(index.selectRowIds(bitmap, offset, limit));
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not read " + parentId + " from media library", e);
+            return Collections.emptyList();
+        }
+    }
+
+
+    /**
+     * Hands items to listener with the catalog entries that only name an id filled in. Lookups
+     * run on lookupExecutor at priority, so a slow network never holds up the loader threads.
+     * When there is nothing to look up listener is called right away on the calling thread.
+     */
+    @WorkerThread
+    private void hydrateItems(@NonNull final List<MediaBrowserCompat.MediaItem> items, int priority, @NonNull final HydrationListener listener) {
+        if (!hasUnhydratedItems(items)) {
+            listener.onItemsHydrated(items);
+            return;
+        }
+        lookupExecutor.execute(new LoaderExecutor.Task() {
+            @Override
+            void runTask() {
+                listener.onItemsHydrated(hydrateItems(items));
+            }
+
+            @Override
+            public String toString() {
+                return "lookup:" + listener;
+            }
+        }, priority);
+    }
+
+
+    /**
+     * Fills in the catalog entries that only name an id and a type from the Apple Music API, one
+     * request per type and MAX_IDS_PER_REQUEST ids. Entries that could not be looked up are
+     * returned as they are, and those the catalog does not know are remembered so they are not
+     * asked for again.
+     */
+    @WorkerThread
+    private List<MediaBrowserCompat.MediaItem> hydrateItems(List<MediaBrowserCompat.MediaItem> items) {
+        final SparseArray<List<String>> idsByType = new SparseArray<>();
+        for (MediaBrowserCompat.MediaItem item : items) {
+            if (needsLookup(item)) {
+                final int type = CatalogJsonParser.getType(item.getDescription().getExtras());
+                List<String> ids = idsByType.get(type);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    idsByType.put(type, ids);
+                }
+                ids.add(item.getMediaId());
+            }
+        }
+        if (idsByType.size() == 0) {
+            return items;
+        }
+        final Map<String, MediaBrowserCompat.MediaItem> foundItems = new HashMap<>();
+        for (int i = 0; i < idsByType.size(); i++) {
+            final int type = idsByType.keyAt(i);
+            try {
+                final Map<String, MediaBrowserCompat.MediaItem> typeItems = catalogClient.lookup(type, idsByType.valueAt(i));
+                for (String id : idsByType.valueAt(i)) {
+                    if (!typeItems.containsKey(id)) {
+                        unknownCatalogIds.add(getLookupKey(type, id));
                     }
-                });
+                }
+                foundItems.putAll(typeItems);
             } catch (IOException e) {
-                mainHandler.post(new Runnable() {
+                Log.w(TAG, "Could not look up " + idsByType.valueAt(i).size() + " catalog items", e);
+            }
+        }
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(items.size());
+        for (MediaBrowserCompat.MediaItem item : items) {
+            final MediaBrowserCompat.MediaItem foundItem = item.getDescription().getTitle() == null ? foundItems.get(item.getMediaId()) : null;
+            // The entry decides whether the item can be browsed or played, the API only describes it
+            result.add(foundItem != null ? new MediaBrowserCompat.MediaItem(foundItem.getDescription(), item.getFlags()) : item);
+        }
+        Log.d(TAG, "Hydrated " + foundItems.size() + " catalog items " + catalogClient);
+        return result;
+    }
+
+
+    private boolean needsLookup(MediaBrowserCompat.MediaItem item) {
+        if (item.getDescription().getTitle() != null || item.getMediaId() == null) {
+            return false;
+        }
+        final int type = CatalogJsonParser.getType(item.getDescription().getExtras());
+        return type != CatalogJsonParser.TYPE_NONE && !unknownCatalogIds.contains(getLookupKey(type, item.getMediaId()));
+    }
+
+
+    /**
+     * Whether some of items still need a lookup, because it failed or has not run yet. Such a list
+     * is not cached so the next load tries again.
+     */
+    private boolean hasUnhydratedItems(List<MediaBrowserCompat.MediaItem> items) {
+        for (MediaBrowserCompat.MediaItem item : items) {
+            if (needsLookup(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static String getLookupKey(int type, String id) {
+        return type + ":" + id;
+    }
+
+
+    private Set<String> getSourceCatalogKeys() throws IOException {
+        final Set<String> result = new LinkedHashSet<>();
+        final MappedCatalog catalog = getMappedCatalog();
+        if (catalog != null) {
+            result.addAll(catalog.getCatalogKeys());
+        } else {
+            addCatalogKeys(applicationContext.getAssets().list(CATALOG_DIRECTORY), result);
+        }
+        addCatalogKeys(catalogOverrideDirectory.list(), result);
+        return result;
+    }
+
+
+    private boolean hasBundledCatalog(MappedCatalog catalog, String catalogKey) throws IOException {
+        if (catalog != null) {
+            return catalog.getCatalogKeys().contains(catalogKey);
+        }
+        final String[] fileNames = applicationContext.getAssets().list(CATALOG_DIRECTORY);
+        return fileNames != null && Arrays.asList(fileNames).contains(DataLoader.getFileName(catalogKey));
+    }
+
+
+    private static void addCatalogKeys(String[] fileNames, Set<String> catalogKeys) {
+        if (fileNames == null) {
+            return;
+        }
+        for (String fileName : fileNames) {
+            final String catalogKey = DataLoader.getCatalogKeyForFile(fileName);
+            if (catalogKey != null) {
+                catalogKeys.add(catalogKey);
+            }
+        }
+    }
+
+
+    private static long getPackageUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+
+    private static List<MediaBrowserCompat.MediaItem> subList(List<MediaBrowserCompat.MediaItem> items, int offset, int limit) {
+        if (offset >= items.size()) {
+            return Collections.emptyList();
+        }
+        return items.subList(offset, (int) Math.min(items.size(), (long) offset + limit));
+    }
+
+
+
+
+    static class DataLoader extends LoaderExecutor.Task implements HydrationListener {
+
+        private final LocalMediaProvider provider;
+        private final String loadKey;
+        private final String parentId;
+        private final String catalogKey;
+        private final int offset;
+        private final int limit;
+        private final int depth;
+        // Only touched on the main thread
+        private final List<PendingResult> results;
+        private volatile int generation;
+
+        DataLoader(LocalMediaProvider provider, String loadKey, String parentId, int offset, int limit, int depth) {
+            this.provider = provider;
+            this.loadKey = loadKey;
+            this.parentId = parentId;
+            this.catalogKey = getCatalogKey(parentId);
+            this.offset = offset;
+            this.limit = limit;
+            this.depth = depth;
+            this.results = new ArrayList<>(1);
+        }
+
+        @Override
+        void runTask() {
+            generation = provider.catalogGeneration.get();
+            final boolean unpaged = offset == 0 && limit == Integer.MAX_VALUE;
+            final List<MediaBrowserCompat.MediaItem> items;
+            try {
+                if (CatalogFacetIndex.isFacetId(parentId)) {
+                    items = provider.readFacetItems(parentId, offset, unpaged ? MAX_UNPAGED_ITEMS : limit);
+                } else {
+                    // One item past the cap tells a parent that fits from one that has to be truncated
+                    items = readItems(provider, catalogKey, offset, unpaged ? MAX_UNPAGED_ITEMS + 1 : limit);
+                }
+            } catch (IOException e) {
+                finish(Collections.<MediaBrowserCompat.MediaItem>emptyList());
+                return;
+            }
+            provider.hydrateItems(items, getPriority(), this);
+        }
+
+
+        @Override
+        public void onItemsHydrated(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+            final boolean unpaged = offset == 0 && limit == Integer.MAX_VALUE;
+            // Facets depend on the whole catalog, so they are evaluated again instead of cached
+            if (unpaged && !CatalogFacetIndex.isFacetId(parentId)) {
+                if (items.size() > MAX_UNPAGED_ITEMS) {
+                    Log.w(TAG, parentId + " has more than " + MAX_UNPAGED_ITEMS + " items, only the first are sent without paging");
+                    items = new ArrayList<>(items.subList(0, MAX_UNPAGED_ITEMS));
+                } else if (generation == provider.catalogGeneration.get() && !provider.hasUnhydratedItems(items)) {
+                    // Partial pages are not cached, the next full load of the parent fills the cache.
+                    // Neither is a truncated parent, a load that raced with a catalog reload, it may
+                    // have read the old file, or one with entries whose lookup failed, that would pin
+                    // untitled items.
+                    items = provider.cache.put(parentId, items);
+                }
+            }
+            finish(items);
+        }
+
+
+        private void finish(List<MediaBrowserCompat.MediaItem> items) {
+            final List<MediaBrowserCompat.MediaItem> loadedItems = items;
+            provider.mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    provider.onLoadFinished(DataLoader.this, loadedItems);
+                }
+            });
+        }
+
+
+        @Override
+        public String toString() {
+            return loadKey;
+        }
+
+
+        private static String getLoadKey(String parentId, int offset, int limit) {
+            if (offset == 0 && limit == Integer.MAX_VALUE) {
+                return parentId;
+            }
+            return parentId + "@" + offset + "+" + limit;
+        }
+
+
+        private static String getCatalogKey(String parentId) {
+            if (MEDIA_ROOT_ID.equals(parentId)) {
+                return ROOT_CATALOG_KEY;
+            }
+            return parentId.replace(':', '_');
+        }
+
+
+        private static String getFileName(String catalogKey) {
+            return catalogKey + ".json";
+        }
+
+
+        @Nullable
+        private static String getCatalogKeyForFile(@Nullable String fileName) {
+            if (fileName == null || !fileName.endsWith(".json")) {
+                return null;
+            }
+            return fileName.substring(0, fileName.length() - ".json".length());
+        }
+
+
+        private static String getAssetName(String catalogKey) {
+            return CATALOG_DIRECTORY + "/" + getFileName(catalogKey);
+        }
+
+
+        private static List<MediaBrowserCompat.MediaItem> readItems(LocalMediaProvider provider, String catalogKey, int offset, int limit) throws IOException {
+            final List<MediaBrowserCompat.MediaItem> items = readCatalogItems(provider, catalogKey, offset, limit);
+            if (!ROOT_CATALOG_KEY.equals(catalogKey) || items.size() >= limit) {
+                return items;
+            }
+            // The smart collections follow the last page of the root
+            final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(items.size() + 1);
+            result.addAll(items);
+            result.add(CatalogFacetIndex.createRootItem());
+            return result;
+        }
+
+
+        private static List<MediaBrowserCompat.MediaItem> readCatalogItems(LocalMediaProvider provider, String catalogKey, int offset, int limit) throws IOException {
+            try {
+                final List<MediaBrowserCompat.MediaItem> items = provider.libraryStore.readItems(catalogKey, offset, limit);
+                if (items != null) {
+                    return items;
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not read " + catalogKey + " from media library", e);
+            }
+            // Not imported yet, so read the source directly
+            final File overrideFile = new File(provider.catalogOverrideDirectory, getFileName(catalogKey));
+            if (overrideFile.isFile()) {
+                return readItemsFromStream(new FileInputStream(overrideFile), provider.stringPool, offset, limit);
+            }
+            final MappedCatalog catalog = provider.getMappedCatalog();
+            if (catalog != null) {
+                final List<MediaBrowserCompat.MediaItem> items = catalog.readItems(catalogKey, offset, limit);
+                if (items != null) {
+                    return items;
+                }
+            }
+            return readItemsFromStream(provider.applicationContext.getAssets().open(getAssetName(catalogKey)), provider.stringPool, offset, limit);
+        }
+
+
+        private static List<MediaBrowserCompat.MediaItem> readItemsFromStream(InputStream inputStream, CatalogStringPool stringPool, int offset, int limit) throws IOException {
+            final CatalogJsonParser parser = new CatalogJsonParser(inputStream, stringPool);
+            try {
+                return parser.readItems(offset, limit);
+            } finally {
+                parser.close();
+            }
+        }
+
+
+        // Also how MediaLibraryStoreBenchmark feeds its imports
+        static void readItemsFromStream(InputStream inputStream, CatalogStringPool stringPool, CatalogJsonParser.ItemHandler handler) throws IOException {
+            final CatalogJsonParser parser = new CatalogJsonParser(inputStream, stringPool);
+            try {
+                parser.readItems(0, Integer.MAX_VALUE, handler);
+            } finally {
+                parser.close();
+            }
+        }
+    }
+
+
+    private static final class CatalogImporter extends LoaderExecutor.Task {
+
+        private final LocalMediaProvider provider;
+
+        CatalogImporter(LocalMediaProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        void runTask() {
+            final long startedAt = SystemClock.elapsedRealtime();
+            try {
+                provider.importCatalogs();
+                provider.rebuildFacetIndex();
+                Log.d(TAG, "Media library up to date in " + (SystemClock.elapsedRealtime() - startedAt) + "ms " + provider.stringPool);
+            } catch (IOException | SQLException e) {
+                // Browsing still works from the catalog files, only search depends on the library
+                Log.e(TAG, "Could not import catalog", e);
+            } finally {
+                provider.libraryReadyLatch.countDown();
+                provider.mainHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        result.sendResult(Collections.<MediaBrowserCompat.MediaItem>emptyList());
+                        provider.onLibraryReady();
                     }
                 });
             }
         }
 
+        @Override
+        public String toString() {
+            return "catalog-import";
+        }
 
-        private static String getFileName(String parentId) {
-            StringBuilder result = new StringBuilder("media_data/");
-            if (MEDIA_ROOT_ID.equals(parentId)) {
-                result.append("root");
+    }
+
+
+    private static final class CatalogReloader extends LoaderExecutor.Task implements HydrationListener {
+
+        private final LocalMediaProvider provider;
+        private final String catalogKey;
+        private final String parentId;
+
+        CatalogReloader(LocalMediaProvider provider, String catalogKey, String parentId) {
+            this.provider = provider;
+            this.catalogKey = catalogKey;
+            this.parentId = parentId;
+        }
+
+        @Override
+        void runTask() {
+            final List<MediaBrowserCompat.MediaItem> items;
+            try {
+                final int result = provider.importCatalog(catalogKey);
+                if (result == IMPORT_UNCHANGED) {
+                    return;
+                }
+                provider.rebuildFacetIndex();
+                if (parentId == null) {
+                    return;
+                }
+                if (result == IMPORT_REMOVED) {
+                    provider.cache.remove(parentId);
+                    finish(true);
+                    return;
+                }
+                if (provider.cache.peek(parentId) == null) {
+                    // Without a cached copy there is nothing to diff against, so assume subscribers are stale
+                    finish(true);
+                    return;
+                }
+                items = DataLoader.readItems(provider, catalogKey, 0, MAX_UNPAGED_ITEMS + 1);
+            } catch (IOException | SQLException e) {
+                // Most likely caught mid-write, the write's own close event schedules another reload
+                Log.w(TAG, "Could not reload " + catalogKey, e);
+                return;
+            }
+            provider.hydrateItems(items, getPriority(), this);
+        }
+
+        @Override
+        public void onItemsHydrated(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+            final List<MediaBrowserCompat.MediaItem> previousItems = provider.cache.peek(parentId);
+            if (previousItems == null) {
+                // Evicted while the lookups ran
+                finish(true);
+                return;
+            }
+            final List<MediaBrowserCompat.MediaItem> mergedItems = CatalogDiff.merge(previousItems, items);
+            final boolean changed = mergedItems != previousItems;
+            if (mergedItems.size() > MAX_UNPAGED_ITEMS || provider.hasUnhydratedItems(mergedItems)) {
+                provider.cache.remove(parentId);
+            } else if (changed) {
+                provider.cache.put(parentId, mergedItems);
+            }
+            finish(changed);
+        }
+
+        private void finish(final boolean changed) {
+            provider.mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    provider.onCatalogReloaded(parentId, changed);
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "catalog-reload:" + catalogKey;
+        }
+
+    }
+
+
+    private static final class CatalogWatcher extends FileObserver {
+
+        private static final int EVENTS = CLOSE_WRITE | MOVED_TO | MOVED_FROM | DELETE;
+
+        private final LocalMediaProvider provider;
+
+        CatalogWatcher(LocalMediaProvider provider, File directory) {
+            // The File constructor needs API 29
+            super(directory.getPath(), EVENTS);
+            this.provider = provider;
+        }
+
+        @Override
+        public void onEvent(int event, @Nullable String path) {
+            final String catalogKey = DataLoader.getCatalogKeyForFile(path);
+            if (catalogKey == null) {
+                return;
+            }
+            provider.mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    provider.onCatalogFileChanged(catalogKey);
+                }
+            });
+        }
+
+    }
+
+
+    private static final class SearchTask extends LoaderExecutor.Task {
+
+        private final LocalMediaProvider provider;
+        // Null reads the default items instead
+        private final String query;
+        private final int limit;
+        private final Handler handler;
+        private final SearchListener listener;
+
+        SearchTask(LocalMediaProvider provider, String query, int limit, Handler handler, SearchListener listener) {
+            this.provider = provider;
+            this.query = query;
+            this.limit = limit;
+            this.handler = handler;
+            this.listener = listener;
+        }
+
+        @Override
+        void runTask() {
+            final List<MediaBrowserCompat.MediaItem> items = query != null
+                    ? provider.searchLibrary(query, limit)
+                    : provider.readDefaultItems(limit);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSearchFinished(items);
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return query != null ? "search:" + query : "default-items";
+        }
+
+    }
+
+
+    private static final class PendingResult {
+
+        final MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result;
+        final BrowseClientProfile profile;
+        final boolean root;
+        final int offset;
+
+        PendingResult(MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result, BrowseClientProfile profile, boolean root) {
+            this(result, profile, root, 0);
+        }
+
+        PendingResult(MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result, BrowseClientProfile profile, boolean root, int offset) {
+            this.result = result;
+            this.profile = profile;
+            this.root = root;
+            this.offset = offset;
+        }
+
+        void send(List<MediaBrowserCompat.MediaItem> items) {
+            result.sendResult(profile.apply(items, root, offset));
+        }
+
+    }
+
+
+    private static final class ItemLoader extends LoaderExecutor.Task implements HydrationListener {
+
+        private final LocalMediaProvider provider;
+        private final String mediaId;
+        private final MediaBrowserServiceCompat.Result<MediaBrowserCompat.MediaItem> result;
+        private final BrowseClientProfile profile;
+
+        ItemLoader(LocalMediaProvider provider, String mediaId, MediaBrowserServiceCompat.Result<MediaBrowserCompat.MediaItem> result, BrowseClientProfile profile) {
+            this.provider = provider;
+            this.mediaId = mediaId;
+            this.result = result;
+            this.profile = profile;
+        }
+
+        @Override
+        void runTask() {
+            final boolean libraryReady = provider.libraryReadyLatch.getCount() == 0;
+            MediaBrowserCompat.MediaItem item;
+            try {
+                item = provider.libraryStore.readItem(mediaId);
+                if (item == null && !libraryReady) {
+                    // Not imported yet, the compiled catalog has every bundled item
+                    final MappedCatalog catalog = provider.getMappedCatalog();
+                    item = catalog != null ? catalog.findItem(mediaId) : null;
+                    if (item == null) {
+                        // Could still come from a catalog override, only the import reads those
+                        provider.mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                provider.executeLibraryTask(ItemLoader.this);
+                            }
+                        });
+                        return;
+                    }
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not look up " + mediaId, e);
+                item = null;
+            }
+            if (item != null) {
+                provider.hydrateItems(Collections.singletonList(item), getPriority(), this);
             } else {
-                result.append(parentId.replace(':', '_'));
+                finish(null);
+            }
+        }
+
+        @Override
+        public void onItemsHydrated(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+            finish(items.get(0));
+        }
+
+        private void finish(final MediaBrowserCompat.MediaItem loadedItem) {
+            provider.mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    result.sendResult(profile.apply(loadedItem));
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "item:" + mediaId;
+        }
+
+    }
+
+
+    /**
+     * Reader for the media_catalog.bin asset produced by the compileMediaCatalog Gradle task.
+     * See build.gradle for the layout.
+     */
+    private static final class MappedCatalog {
+
+        private static final String ASSET_NAME = "media_catalog.bin";
+        private static final int MAGIC = 0x4D4B4354;
+        private static final int VERSION = 2;
+        private static final int HEADER_BYTES = 40;
+        private static final int STRING_INDEX_ENTRY_BYTES = 8;
+        private static final int PARENT_INDEX_ENTRY_BYTES = 12;
+        private static final int ITEM_RECORD_BYTES = 32;
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private final ByteBuffer buffer;
+        private final CatalogStringPool stringPool;
+        private final int stringCount;
+        private final int stringIndexOffset;
+        private final int itemOffset;
+        private final int idIndexOffset;
+        private final int idIndexCount;
+        private final Map<String, int[]> parentIndex;
+
+
+        private MappedCatalog(ByteBuffer buffer, CatalogStringPool stringPool) throws IOException {
+            this.buffer = buffer;
+            this.stringPool = stringPool;
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported catalog format");
+            }
+            stringCount = buffer.getInt(8);
+            final int parentCount = buffer.getInt(12);
+            stringIndexOffset = buffer.getInt(20);
+            final int parentIndexOffset = buffer.getInt(24);
+            itemOffset = buffer.getInt(28);
+            idIndexOffset = buffer.getInt(32);
+            idIndexCount = buffer.getInt(36);
+            parentIndex = new HashMap<>(parentCount * 2);
+            for (int i = 0; i < parentCount; i++) {
+                final int entryOffset = parentIndexOffset + i * PARENT_INDEX_ENTRY_BYTES;
+                parentIndex.put(readString(buffer.getInt(entryOffset)), new int[] {buffer.getInt(entryOffset + 4), buffer.getInt(entryOffset + 8)});
             }
-            result.append(".json");
-            return result.toString();
         }
 
 
-        private static List<MediaBrowserCompat.MediaItem> readItemsFromFile(Context context, String fileName) throws IOException {
-            final JsonReader reader = new JsonReader(new InputStreamReader(context.getAssets().open(fileName), "UTF-8"));
+        static MappedCatalog open(Context context, CatalogStringPool stringPool) throws IOException {
+            MappedByteBuffer buffer;
             try {
-                return readItemsArray(reader);
-            } finally {
-                reader.close();
+                final AssetFileDescriptor fd = context.getAssets().openFd(ASSET_NAME);
+                final FileInputStream inputStream = fd.createInputStream();
+                try {
+                    buffer = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+                } finally {
+                    inputStream.close();
+                }
+            } catch (FileNotFoundException e) {
+                // Stored compressed in the APK, so it has to be extracted before it can be mapped
+                buffer = mapFile(extractAsset(context));
             }
+            return new MappedCatalog(buffer, stringPool);
+        }
+
+
+        Set<String> getCatalogKeys() {
+            return parentIndex.keySet();
         }
 
 
-        private static List<MediaBrowserCompat.MediaItem> readItemsArray(JsonReader reader) throws IOException {
-            List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
-            reader.beginArray();
-            while (reader.hasNext()) {
-                result.add(readItem(reader));
+        List<MediaBrowserCompat.MediaItem> readItems(String catalogKey, int offset, int limit) {
+            final int[] range = parentIndex.get(catalogKey);
+            if (range == null) {
+                return null;
+            }
+            final int count = (int) Math.max(0, Math.min((long) range[1] - offset, limit));
+            final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(count);
+            for (int i = range[0] + offset, end = i + count; i < end; i++) {
+                result.add(readItem(i));
             }
-            reader.endArray();
             return result;
         }
 
-        private static MediaBrowserCompat.MediaItem readItem(JsonReader reader) throws IOException {
-            int flags = 0;
-            MediaDescriptionCompat.Builder mediaDescriptionBuilder = new MediaDescriptionCompat.Builder();
-            reader.beginObject();
-            while (reader.hasNext()) {
-                final String fieldName = reader.nextName();
-                if ("id".equals(fieldName)) {
-                    mediaDescriptionBuilder.setMediaId(reader.nextString());
-                } else if ("title".equals(fieldName)) {
-                    mediaDescriptionBuilder.setTitle(reader.nextString());
-                } else if ("subtitle".equals(fieldName)) {
-                    mediaDescriptionBuilder.setSubtitle(reader.nextString());
-                } else if ("description".equals(fieldName)) {
-                    mediaDescriptionBuilder.setDescription(reader.nextString());
-                } else if ("browseable".equals(fieldName)) {
-                    if (reader.nextBoolean()) {
-                        flags |= MediaBrowserCompat.MediaItem.FLAG_BROWSABLE;
-                    }
-                } else if ("playable".equals(fieldName)) {
-                    if (reader.nextBoolean()) {
-                        flags |= MediaBrowserCompat.MediaItem.FLAG_PLAYABLE;
-                    }
-                } else if ("mediaUri".equals(fieldName)) {
-                    mediaDescriptionBuilder.setMediaUri(Uri.parse(reader.nextString()));
-                } else if ("iconUri".equals(fieldName)) {
-                    mediaDescriptionBuilder.setIconUri(Uri.parse(reader.nextString()));
-                } else if ("type".equals(fieldName)) {
-                    String type = reader.nextString();
-                    Bundle extras = new Bundle(1);
-                    if ("song".equals(type)) {
-                        extras.putInt("itemType", MediaItemType.SONG);
-                    } else if ("album".equals(type)) {
-                        extras.putInt("containerType", MediaContainerType.ALBUM);
-                    } else if ("playlist".equals(type)) {
-                        extras.putInt("containerType", MediaContainerType.PLAYLIST);
-                    }
-                    mediaDescriptionBuilder.setExtras(extras);
+
+        /**
+         * Binary searches the id index, comparing UTF-8 bytes in place so only the match is decoded.
+         */
+        @Nullable
+        MediaBrowserCompat.MediaItem findItem(@NonNull String mediaId) {
+            final byte[] key = mediaId.getBytes(UTF_8);
+            int low = 0;
+            int high = idIndexCount - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int index = buffer.getInt(idIndexOffset + middle * 4);
+                final int comparison = compareString(buffer.getInt(itemOffset + index * ITEM_RECORD_BYTES), key);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
                 } else {
-                    reader.skipValue();
+                    return readItem(index);
+                }
+            }
+            return null;
+        }
+
+
+        private int compareString(int index, byte[] key) {
+            final int entryOffset = stringIndexOffset + index * STRING_INDEX_ENTRY_BYTES;
+            final int dataOffset = buffer.getInt(entryOffset);
+            final int length = buffer.getInt(entryOffset + 4);
+            for (int i = 0, end = Math.min(length, key.length); i < end; i++) {
+                final int difference = (buffer.get(dataOffset + i) & 0xFF) - (key[i] & 0xFF);
+                if (difference != 0) {
+                    return difference;
                 }
             }
-            reader.endObject();
-            return new MediaBrowserCompat.MediaItem(mediaDescriptionBuilder.build(), flags);
+            return length - key.length;
+        }
+
+
+        private MediaBrowserCompat.MediaItem readItem(int index) {
+            final int recordOffset = itemOffset + index * ITEM_RECORD_BYTES;
+            final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder();
+            builder.setMediaId(readString(buffer.getInt(recordOffset)));
+            builder.setTitle(readString(buffer.getInt(recordOffset + 4)));
+            builder.setSubtitle(stringPool.intern(readString(buffer.getInt(recordOffset + 8))));
+            builder.setDescription(stringPool.intern(readString(buffer.getInt(recordOffset + 12))));
+            final String mediaUri = readString(buffer.getInt(recordOffset + 16));
+            if (mediaUri != null) {
+                builder.setMediaUri(Uri.parse(mediaUri));
+            }
+            final String iconUri = readString(buffer.getInt(recordOffset + 20));
+            if (iconUri != null) {
+                builder.setIconUri(Uri.parse(iconUri));
+            }
+            builder.setExtras(CatalogJsonParser.getTypeExtras(buffer.getInt(recordOffset + 28)));
+            return new MediaBrowserCompat.MediaItem(builder.build(), buffer.getInt(recordOffset + 24));
+        }
+
+
+        private String readString(int index) {
+            if (index < 0 || index >= stringCount) {
+                return null;
+            }
+            final int entryOffset = stringIndexOffset + index * STRING_INDEX_ENTRY_BYTES;
+            final int dataOffset = buffer.getInt(entryOffset);
+            final byte[] bytes = new byte[buffer.getInt(entryOffset + 4)];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(dataOffset);
+            view.get(bytes);
+            return new String(bytes, UTF_8);
         }
+
+
+        private static File extractAsset(Context context) throws IOException {
+            final File file = new File(context.getNoBackupFilesDir(), ASSET_NAME);
+            if (file.exists() && file.lastModified() >= getPackageUpdateTime(context)) {
+                return file;
+            }
+            final File tempFile = new File(file.getPath() + ".tmp");
+            final InputStream inputStream = context.getAssets().open(ASSET_NAME);
+            try {
+                final OutputStream outputStream = new FileOutputStream(tempFile);
+                try {
+                    final byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, count);
+                    }
+                } finally {
+                    outputStream.close();
+                }
+            } finally {
+                inputStream.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not extract " + ASSET_NAME);
+            }
+            return file;
+        }
+
+
+        private static MappedByteBuffer mapFile(File file) throws IOException {
+            final FileInputStream inputStream = new FileInputStream(file);
+            try {
+                return inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                inputStream.close();
+            }
+        }
+
     }
 }
@@ -0,0 +1,193 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.net.Uri;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ */
+final class MediaItemCache {
+
+    private static final int ITEM_OVERHEAD_BYTES = 160;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    private long sizeBytes;
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+
+    MediaItemCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+
+    @Nullable
+    synchronized List<MediaBrowserCompat.MediaItem> get(@NonNull String parentId) {
+        final Entry entry = entries.get(parentId);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.items;
+    }
+
+
+    @Nullable
+    synchronized List<MediaBrowserCompat.MediaItem> peek(@NonNull String parentId) {
+        // Unlike get this does not count towards the hit and miss stats
+        final Entry entry = entries.get(parentId);
+        return entry != null ? entry.items : null;
+    }
+
+
+    synchronized boolean contains(@NonNull String parentId) {
+        return entries.containsKey(parentId);
+    }
+
+
+    /**
+     * Returns the items of every cached parent, the lists themselves are never modified.
+     */
+    @NonNull
+    synchronized List<List<MediaBrowserCompat.MediaItem>> values() {
+        final List<List<MediaBrowserCompat.MediaItem>> result = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            result.add(entry.items);
+        }
+        return result;
+    }
+
+
+    @NonNull
+    List<MediaBrowserCompat.MediaItem> put(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> items) {
+        final List<MediaBrowserCompat.MediaItem> immutableItems = Collections.unmodifiableList(items);
+        final long entrySize = estimateSize(items);
+        synchronized (this) {
+            final Entry previous = entries.put(parentId, new Entry(immutableItems, entrySize));
+            if (previous != null) {
+                sizeBytes -= previous.sizeBytes;
+            }
+            sizeBytes += entrySize;
+            trimTo(maxEntries, maxBytes);
+        }
+        return immutableItems;
+    }
+
+
+    synchronized void remove(@NonNull String parentId) {
+        final Entry previous = entries.remove(parentId);
+        if (previous != null) {
+            sizeBytes -= previous.sizeBytes;
+        }
+    }
+
+
+    synchronized void trimToSize(long targetBytes) {
+        trimTo(maxEntries, targetBytes);
+    }
+
+
+    synchronized void evictAll() {
+        trimTo(0, 0);
+    }
+
+
+    synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+
+    synchronized int hitCount() {
+        return hitCount;
+    }
+
+
+    synchronized int missCount() {
+        return missCount;
+    }
+
+
+    synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "MediaItemCache[entries=" + entries.size() + ", bytes=" + sizeBytes + "/" + maxBytes
+                + ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+    }
+
+
+    private void trimTo(int targetEntries, long targetBytes) {
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > targetEntries || sizeBytes > targetBytes) && iterator.hasNext()) {
+            final Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            sizeBytes -= eldest.sizeBytes;
+            evictionCount++;
+        }
+    }
+
+
+    static long estimateSize(@NonNull List<MediaBrowserCompat.MediaItem> items) {
+        long result = 0;
+        for (MediaBrowserCompat.MediaItem item : items) {
+            final MediaDescriptionCompat description = item.getDescription();
+            result += ITEM_OVERHEAD_BYTES;
+            result += estimateSize(description.getMediaId());
+            result += estimateSize(description.getTitle());
+            result += estimateSize(description.getSubtitle());
+            result += estimateSize(description.getDescription());
+            result += estimateSize(description.getIconUri());
+            result += estimateSize(description.getMediaUri());
+        }
+        return result;
+    }
+
+
+    static long estimateSize(@Nullable CharSequence value) {
+        return value != null ? STRING_OVERHEAD_BYTES + 2L * value.length() : 0;
+    }
+
+
+    private static long estimateSize(@Nullable Uri value) {
+        return value != null ? STRING_OVERHEAD_BYTES + estimateSize(value.toString()) : 0;
+    }
+
+
+    private static final class Entry {
+
+        final List<MediaBrowserCompat.MediaItem> items;
+        final long sizeBytes;
+
+        Entry(List<MediaBrowserCompat.MediaItem> items, long sizeBytes) {
+            this.items = items;
+            this.sizeBytes = sizeBytes;
+        }
+
+    }
+
+}
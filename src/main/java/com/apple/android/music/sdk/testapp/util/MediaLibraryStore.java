@@ -0,0 +1,448 @@
+package com.apple.android.music.sdk.testapp.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copyright (C) 2017 Apple, Inc. All rights reserved.
+ *
+ * SQLite copy of the browse catalog. Every parent is a run of rows in the items table ordered by
+ * position, so a page is a single index range scan and nothing larger than a page is ever held
+ * in memory. Titles, subtitles and descriptions are also indexed in an FTS4 table for search.
+ */
+@WorkerThread
+final class MediaLibraryStore {
+
+    private static final String TAG = "MediaLibraryStore";
+    private static final String DATABASE_NAME = "media_library.db";
+    private static final int DATABASE_VERSION = 2;
+    private static final int IMPORT_BATCH_SIZE = 500;
+    private static final int SEARCH_PAGE_SIZE = 50;
+    // Rows are staged under this prefix until the import of a parent commits
+    private static final String STAGING_PREFIX = "import:";
+
+    private static final String ITEM_COLUMNS = "media_id, title, subtitle, description, media_uri, icon_uri, flags, type";
+    private static final String SQL_SELECT_PAGE = "SELECT " + ITEM_COLUMNS + " FROM items"
+            + " WHERE parent_key = ? AND position >= ? ORDER BY position LIMIT ?";
+    private static final String SQL_SELECT_ITEM = "SELECT " + ITEM_COLUMNS + " FROM items"
+            + " WHERE media_id = ? AND parent_key IN (SELECT catalog_key FROM catalog_sources) LIMIT 1";
+    private static final String SQL_SEARCH = "SELECT items.media_id, items.title, items.subtitle, items.description, items.media_uri,"
+            + " items.icon_uri, items.flags, items.type FROM items_fts JOIN items ON items._id = items_fts.docid"
+            + " WHERE items_fts MATCH ? AND items.media_id IS NOT NULL"
+            + " AND items.parent_key IN (SELECT catalog_key FROM catalog_sources)"
+            + " ORDER BY items_fts.docid LIMIT ? OFFSET ?";
+    private static final String SQL_SELECT_PLAYABLE = "SELECT " + ITEM_COLUMNS + " FROM items"
+            + " WHERE flags & " + MediaBrowserCompat.MediaItem.FLAG_PLAYABLE + " != 0 AND media_id IS NOT NULL"
+            + " AND parent_key IN (SELECT catalog_key FROM catalog_sources) ORDER BY _id LIMIT ?";
+    private static final String SQL_SCAN_ATTRIBUTES = "SELECT _id, media_id, subtitle, flags, type FROM items"
+            + " WHERE media_id IS NOT NULL AND parent_key IN (SELECT catalog_key FROM catalog_sources) ORDER BY _id";
+    private static final String SQL_INSERT_ITEM = "INSERT INTO items (parent_key, position, " + ITEM_COLUMNS + ")"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final DatabaseHelper databaseHelper;
+    private final CatalogStringPool stringPool;
+    // Source stamps of the parents whose import has committed, reads for anything else return null
+    private final Map<String, String> sourceStamps;
+    private boolean loaded;
+
+
+    MediaLibraryStore(@NonNull Context context, @NonNull CatalogStringPool stringPool) {
+        this(context, stringPool, DATABASE_NAME);
+    }
+
+
+    MediaLibraryStore(@NonNull Context context, @NonNull CatalogStringPool stringPool, @NonNull String databaseName) {
+        databaseHelper = new DatabaseHelper(context.getApplicationContext(), databaseName);
+        this.stringPool = stringPool;
+        sourceStamps = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Loads the list of imported parents. Until this has run the store behaves as if it was empty.
+     */
+    synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        final Cursor cursor = databaseHelper.getReadableDatabase().rawQuery("SELECT catalog_key, source_stamp FROM catalog_sources", null);
+        try {
+            while (cursor.moveToNext()) {
+                sourceStamps.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        loaded = true;
+    }
+
+
+    @NonNull
+    Set<String> getCatalogKeys() {
+        return sourceStamps.keySet();
+    }
+
+
+    @Nullable
+    String getSourceStamp(@NonNull String catalogKey) {
+        return sourceStamps.get(catalogKey);
+    }
+
+
+    @NonNull
+    Importer beginImport(@NonNull String catalogKey) {
+        return new Importer(databaseHelper.getWritableDatabase(), catalogKey);
+    }
+
+
+    void remove(@NonNull String catalogKey) {
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            database.delete("items", "parent_key = ?", new String[] {catalogKey});
+            database.delete("catalog_sources", "catalog_key = ?", new String[] {catalogKey});
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        sourceStamps.remove(catalogKey);
+    }
+
+
+    /**
+     * Reads up to limit items of a parent starting at offset, or returns null if the parent
+     * has not been imported.
+     */
+    @Nullable
+    List<MediaBrowserCompat.MediaItem> readItems(@NonNull String catalogKey, int offset, int limit) {
+        if (!sourceStamps.containsKey(catalogKey)) {
+            return null;
+        }
+        final Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(SQL_SELECT_PAGE,
+                new String[] {catalogKey, Integer.toString(offset), Integer.toString(limit)});
+        try {
+            return readItems(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Looks up a single item through the media_id index, without touching the rest of its parent.
+     * Returns null if no imported parent contains it.
+     */
+    @Nullable
+    MediaBrowserCompat.MediaItem readItem(@NonNull String mediaId) {
+        final Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(SQL_SELECT_ITEM, new String[] {mediaId});
+        try {
+            final List<MediaBrowserCompat.MediaItem> items = readItems(cursor);
+            return items.isEmpty() ? null : items.get(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Reads the first limit playable items of the library in catalog order, for a request to
+     * play without saying what.
+     */
+    @NonNull
+    List<MediaBrowserCompat.MediaItem> readPlayableItems(int limit) {
+        final Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(SQL_SELECT_PLAYABLE, new String[] {Integer.toString(limit)});
+        try {
+            return readItems(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Finds the items whose title, subtitle or description has a word starting with every token
+     * of query. Items whose title has every token as a whole word come first, then those whose
+     * title has a word starting with every token, then any other match, each in catalog order.
+     * Every tier is a full text query read in pages that stops once limit items are found, so a
+     * broad query costs no more than a narrow one.
+     */
+    @NonNull
+    List<MediaBrowserCompat.MediaItem> search(@Nullable String query, int limit) {
+        final List<String> tokens = new ArrayList<>();
+        tokenize(query, tokens);
+        if (tokens.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // Tokens are lower case letters and digits only, so they can't form FTS operators
+        final StringBuilder exactTitleMatch = new StringBuilder();
+        final StringBuilder titleMatch = new StringBuilder();
+        final StringBuilder match = new StringBuilder();
+        for (String token : tokens) {
+            final String separator = match.length() > 0 ? " " : "";
+            exactTitleMatch.append(separator).append("title:").append(token);
+            titleMatch.append(separator).append("title:").append(token).append('*');
+            match.append(separator).append(token).append('*');
+        }
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(limit);
+        final Set<String> mediaIds = new HashSet<>();
+        for (String tierMatch : new String[] {exactTitleMatch.toString(), titleMatch.toString(), match.toString()}) {
+            searchTier(tierMatch, limit, result, mediaIds);
+            if (result.size() == limit) {
+                break;
+            }
+        }
+        return result;
+    }
+
+
+    private void searchTier(String match, int limit, List<MediaBrowserCompat.MediaItem> result, Set<String> mediaIds) {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        for (int offset = 0; result.size() < limit; offset += SEARCH_PAGE_SIZE) {
+            final List<MediaBrowserCompat.MediaItem> page;
+            final Cursor cursor = database.rawQuery(SQL_SEARCH,
+                    new String[] {match, Integer.toString(SEARCH_PAGE_SIZE), Integer.toString(offset)});
+            try {
+                page = readItems(cursor);
+            } finally {
+                cursor.close();
+            }
+            for (MediaBrowserCompat.MediaItem item : page) {
+                // Earlier tiers already matched it, or it is listed under several parents
+                if (result.size() < limit && mediaIds.add(item.getMediaId())) {
+                    result.add(item);
+                }
+            }
+            if (page.size() < SEARCH_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Reads the items with the given row ids, in row id order. The ids are numbers, so they are
+     * inlined into the statement in chunks instead of being bound one by one.
+     */
+    @NonNull
+    List<MediaBrowserCompat.MediaItem> readItemsByRowId(@NonNull long[] rowIds) {
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(rowIds.length);
+        final StringBuilder sql = new StringBuilder();
+        for (int start = 0; start < rowIds.length; start += IMPORT_BATCH_SIZE) {
+            sql.setLength(0);
+            sql.append("SELECT ").append(ITEM_COLUMNS).append(" FROM items WHERE _id IN (");
+            for (int i = start, end = Math.min(rowIds.length, start + IMPORT_BATCH_SIZE); i < end; i++) {
+                sql.append(i > start ? "," : "").append(rowIds[i]);
+            }
+            sql.append(") ORDER BY _id");
+            final Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(sql.toString(), null);
+            try {
+                result.addAll(readItems(cursor));
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Feeds the attributes of every imported item to builder in row id order, without creating
+     * any MediaItem.
+     */
+    void scanAttributes(@NonNull CatalogFacetIndex.Builder builder) {
+        final Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(SQL_SCAN_ATTRIBUTES, null);
+        try {
+            while (cursor.moveToNext()) {
+                builder.add(cursor.getLong(0), cursor.getString(1), stringPool.intern(cursor.getString(2)), cursor.getInt(3), cursor.getInt(4));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    private List<MediaBrowserCompat.MediaItem> readItems(Cursor cursor) {
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(cursor.getCount());
+        final MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder();
+        while (cursor.moveToNext()) {
+            builder.setMediaId(cursor.getString(0))
+                    .setTitle(cursor.getString(1))
+                    .setSubtitle(stringPool.intern(cursor.getString(2)))
+                    .setDescription(stringPool.intern(cursor.getString(3)))
+                    .setMediaUri(parseUri(cursor.getString(4)))
+                    .setIconUri(parseUri(cursor.getString(5)))
+                    .setExtras(CatalogJsonParser.getTypeExtras(cursor.getInt(7)));
+            result.add(new MediaBrowserCompat.MediaItem(builder.build(), cursor.getInt(6)));
+        }
+        return result;
+    }
+
+
+    private static Uri parseUri(String value) {
+        return value != null ? Uri.parse(value) : null;
+    }
+
+
+    private static void tokenize(@Nullable String value, @NonNull List<String> tokens) {
+        if (value == null) {
+            return;
+        }
+        final String text = value.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0, length = text.length(); i <= length; i++) {
+            final boolean wordCharacter = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordCharacter && start < 0) {
+                start = i;
+            } else if (!wordCharacter && start >= 0) {
+                tokens.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+
+    /**
+     * Streams the items of one parent into the store. Rows are written in batched transactions
+     * under a staging key, and commit swaps them in for the previous rows in one transaction,
+     * so readers see either the old or the new parent and never a partial one.
+     */
+    final class Importer implements CatalogJsonParser.ItemHandler {
+
+        private final SQLiteDatabase database;
+        private final String catalogKey;
+        private final String stagingKey;
+        private final SQLiteStatement insertStatement;
+        private final long startedAt;
+        private int count;
+
+        private Importer(SQLiteDatabase database, String catalogKey) {
+            this.database = database;
+            this.catalogKey = catalogKey;
+            stagingKey = STAGING_PREFIX + catalogKey;
+            insertStatement = database.compileStatement(SQL_INSERT_ITEM);
+            startedAt = SystemClock.elapsedRealtime();
+            // Left over if a previous import of this parent was interrupted
+            database.delete("items", "parent_key = ?", new String[] {stagingKey});
+            database.beginTransaction();
+        }
+
+        @Override
+        public void onItem(@NonNull MediaBrowserCompat.MediaItem item) {
+            final MediaDescriptionCompat description = item.getDescription();
+            insertStatement.clearBindings();
+            insertStatement.bindString(1, stagingKey);
+            insertStatement.bindLong(2, count);
+            bindString(3, description.getMediaId());
+            bindString(4, description.getTitle());
+            bindString(5, description.getSubtitle());
+            bindString(6, description.getDescription());
+            bindString(7, description.getMediaUri());
+            bindString(8, description.getIconUri());
+            insertStatement.bindLong(9, item.getFlags());
+            insertStatement.bindLong(10, CatalogJsonParser.getType(description.getExtras()));
+            insertStatement.executeInsert();
+            if (++count % IMPORT_BATCH_SIZE == 0) {
+                database.setTransactionSuccessful();
+                database.endTransaction();
+                database.beginTransaction();
+            }
+        }
+
+        void commit(@NonNull String sourceStamp) {
+            try {
+                database.delete("items", "parent_key = ?", new String[] {catalogKey});
+                final ContentValues values = new ContentValues(1);
+                values.put("parent_key", catalogKey);
+                database.update("items", values, "parent_key = ?", new String[] {stagingKey});
+                final ContentValues sourceValues = new ContentValues(2);
+                sourceValues.put("catalog_key", catalogKey);
+                sourceValues.put("source_stamp", sourceStamp);
+                database.insertWithOnConflict("catalog_sources", null, sourceValues, SQLiteDatabase.CONFLICT_REPLACE);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                insertStatement.close();
+            }
+            sourceStamps.put(catalogKey, sourceStamp);
+            final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startedAt);
+            Log.d(TAG, "Imported " + count + " items into " + catalogKey + " in " + elapsed + "ms ("
+                    + (count * 1000L / elapsed) + " items/s)");
+        }
+
+        void abort() {
+            // Batches already committed stay under the staging key until the next import clears them
+            database.endTransaction();
+            insertStatement.close();
+        }
+
+        private void bindString(int index, @Nullable Object value) {
+            if (value != null) {
+                insertStatement.bindString(index, value.toString());
+            } else {
+                insertStatement.bindNull(index);
+            }
+        }
+
+    }
+
+
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context, String databaseName) {
+            super(context, databaseName, null, DATABASE_VERSION);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE items (_id INTEGER PRIMARY KEY, parent_key TEXT NOT NULL, position INTEGER NOT NULL,"
+                    + " media_id TEXT, title TEXT, subtitle TEXT, description TEXT, media_uri TEXT, icon_uri TEXT,"
+                    + " flags INTEGER NOT NULL, type INTEGER NOT NULL)");
+            db.execSQL("CREATE UNIQUE INDEX items_parent_position ON items (parent_key, position)");
+            db.execSQL("CREATE INDEX items_media_id ON items (media_id)");
+            db.execSQL("CREATE TABLE catalog_sources (catalog_key TEXT PRIMARY KEY, source_stamp TEXT NOT NULL)");
+            // External content FTS, kept in sync by triggers so the text is only stored once
+            db.execSQL("CREATE VIRTUAL TABLE items_fts USING fts4 (content=\"items\", title, subtitle, description)");
+            db.execSQL("CREATE TRIGGER items_fts_insert AFTER INSERT ON items BEGIN"
+                    + " INSERT INTO items_fts (docid, title, subtitle, description) VALUES (new._id, new.title, new.subtitle, new.description); END");
+            db.execSQL("CREATE TRIGGER items_fts_delete BEFORE DELETE ON items BEGIN"
+                    + " DELETE FROM items_fts WHERE docid = old._id; END");
+            db.execSQL("CREATE TRIGGER items_fts_before_update BEFORE UPDATE OF title, subtitle, description ON items BEGIN"
+                    + " DELETE FROM items_fts WHERE docid = old._id; END");
+            db.execSQL("CREATE TRIGGER items_fts_after_update AFTER UPDATE OF title, subtitle, description ON items BEGIN"
+                    + " INSERT INTO items_fts (docid, title, subtitle, description) VALUES (new._id, new.title, new.subtitle, new.description); END");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Everything in here is derived from the catalog files, so it is simply imported again
+            db.execSQL("DROP TABLE IF EXISTS items_fts");
+            db.execSQL("DROP TABLE IF EXISTS catalog_sources");
+            db.execSQL("DROP TABLE IF EXISTS items");
+            onCreate(db);
+        }
+
+    }
+
+}